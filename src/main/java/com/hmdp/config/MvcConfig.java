@@ -2,6 +2,9 @@ package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillAdmissionInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
@@ -14,6 +17,10 @@ import javax.annotation.Resource;
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillAdmission seckillAdmission;
+    @Value("${hmdp.seckill.admission.enabled:false}")
+    private Boolean admissionEnabled;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor())
@@ -21,12 +28,20 @@ public class MvcConfig implements WebMvcConfigurer {
                   "/user/login",
                   "/user/code",
                   "/blog/hot",
+                  //商铺的查询不用登录，新增、修改、删除由下面的拦截器检查
                   "/shop/**",
                   "/voucher/**",
                   "/shop-type/**",
                   "/upload/**"
                 ).order(1);
+        registry.addInterceptor(new LoginInterceptor(true))
+                .addPathPatterns("/shop/**").order(1);
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
                 .addPathPatterns("/**").order(0);
+        //秒杀准入控制，排在登录拦截器之后，未登录的请求不会创建令牌桶
+        if(admissionEnabled){
+            registry.addInterceptor(new SeckillAdmissionInterceptor(seckillAdmission))
+                    .addPathPatterns("/voucher-order/seckill/**").order(2);
+        }
     }
 }
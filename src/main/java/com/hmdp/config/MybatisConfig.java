@@ -2,15 +2,27 @@ package com.hmdp.config;
 
 import com.baomidou.mybatisplus.annotation.DbType;
 import com.baomidou.mybatisplus.extension.plugins.MybatisPlusInterceptor;
+import com.baomidou.mybatisplus.extension.plugins.handler.TableNameHandler;
+import com.baomidou.mybatisplus.extension.plugins.inner.DynamicTableNameInnerInterceptor;
 import com.baomidou.mybatisplus.extension.plugins.inner.PaginationInnerInterceptor;
+import com.hmdp.utils.OrderShards;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.HashMap;
+import java.util.Map;
+
 @Configuration
 public class MybatisConfig {
     @Bean
-    public MybatisPlusInterceptor mybatisPlusInterceptor() {
+    public MybatisPlusInterceptor mybatisPlusInterceptor(OrderShards orderShards) {
         MybatisPlusInterceptor interceptor = new MybatisPlusInterceptor();
+        //订单分表，表名改写要在分页之前
+        DynamicTableNameInnerInterceptor dynamicTableName = new DynamicTableNameInnerInterceptor();
+        Map<String, TableNameHandler> handlers = new HashMap<>();
+        handlers.put(OrderShards.TABLE, (sql, tableName) -> orderShards.tableName(tableName));
+        dynamicTableName.setTableNameHandlerMap(handlers);
+        interceptor.addInnerInterceptor(dynamicTableName);
         interceptor.addInnerInterceptor(new PaginationInnerInterceptor(DbType.MYSQL));
         return interceptor;
     }
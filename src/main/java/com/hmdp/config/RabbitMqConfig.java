@@ -0,0 +1,63 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.MqConst;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.FanoutExchange;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class RabbitMqConfig {
+
+    @Value("${hmdp.order.batch.size:100}")
+    private Integer batchSize;
+
+    @Value("${hmdp.order.batch.wait-ms:200}")
+    private Long batchWaitMs;
+
+    /**
+     * 订单队列的死信交换机和死信队列，订单队列通过 x-dead-letter-exchange 指向这里
+     */
+    @Bean
+    public FanoutExchange orderDlxExchange() {
+        return new FanoutExchange(MqConst.ORDER_DLX_EXCHANGE);
+    }
+
+    @Bean
+    public Queue orderDlxQueue() {
+        return new Queue(MqConst.ORDER_DLX_QUEUE);
+    }
+
+    @Bean
+    public Binding orderDlxBinding() {
+        return BindingBuilder.bind(orderDlxQueue()).to(orderDlxExchange());
+    }
+
+    /**
+     * 批量消费订单的监听容器：一次最多拉取 batchSize 条消息，
+     * 或者等待 batchWaitMs 毫秒后把已拉到的消息作为一批交给监听器，整批手动 ack/nack
+     */
+    @Bean(MqConst.ORDER_BATCH_CONTAINER_FACTORY)
+    @ConditionalOnProperty(prefix = "hmdp.order.batch", name = "enabled", havingValue = "true")
+    public SimpleRabbitListenerContainerFactory orderBatchContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(batchWaitMs);
+        //预取数量至少要能装下一整批
+        factory.setPrefetchCount(batchSize);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        return factory;
+    }
+}
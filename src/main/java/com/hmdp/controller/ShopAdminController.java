@@ -0,0 +1,49 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheClient;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 商铺缓存监控，/admin 不在登录拦截的排除列表中，必须登录后才能访问
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin/shop")
+public class ShopAdminController {
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 缓存命中统计：每个key前缀的本地缓存和redis命中率
+     */
+    @GetMapping("/cache/stats")
+    public Result cacheStats() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 本节点探测到的热点key，按窗口内访问次数从高到低
+     */
+    @GetMapping("/cache/hot-keys")
+    public Result hotKeys() {
+        return Result.ok(cacheClient.hotKeys());
+    }
+
+    /**
+     * 店铺布隆过滤器：各层容量和插入数、估算误判率和实际观测到的误判率
+     */
+    @GetMapping("/bloom/stats")
+    public Result bloomStats() {
+        return Result.ok(shopService.getBloomFilter().stats());
+    }
+}
@@ -43,10 +43,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库，返回店铺id
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -60,6 +58,16 @@ public class ShopController {
         return shopService.update(shop);
     }
 
+    /**
+     * 删除商铺
+     * @param id 商铺id
+     * @return 无
+     */
+    @DeleteMapping("/{id}")
+    public Result deleteShop(@PathVariable("id") Long id) {
+        return shopService.deleteShop(id);
+    }
+
     /**
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
@@ -4,12 +4,27 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.dispatcher.OrderDispatcher;
+import com.hmdp.service.job.SeckillStockPrewarmer;
+import com.hmdp.service.job.SeckillStockReconciler;
+import com.hmdp.service.job.UnpaidOrderExpirer;
+import com.hmdp.utils.OrderStatusCache;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 /**
  * <p>
@@ -22,11 +37,120 @@ import javax.annotation.Resource;
 @RestController
 @RequestMapping("/voucher-order")
 public class VoucherOrderController {
+    //订单状态长轮询最长等待时间
+    private static final long MAX_STATUS_WAIT_MS = 30000L;
+
     @Resource
     private IVoucherOrderService voucherOrderService;
 
+    @Resource
+    private OrderDispatcher orderDispatcher;
+    @Resource
+    private SeckillStockReconciler seckillStockReconciler;
+    @Resource
+    private SeckillAdmission seckillAdmission;
+    @Resource
+    private SeckillStockPrewarmer seckillStockPrewarmer;
+    @Resource
+    private OrderStatusCache orderStatusCache;
+    @Resource
+    private UnpaidOrderExpirer unpaidOrderExpirer;
+    @Resource
+    private RedisScripts redisScripts;
+
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.secKillVouvher(voucherId);
     }
+
+    /**
+     * 组合秒杀：一次抢购多张券，全部成功才下单
+     * @param voucherIds 券id列表，数量不超过 hmdp.seckill.bundle.max-size
+     */
+    @PostMapping("seckill/bundle")
+    public Result seckillBundle(@RequestBody List<Long> voucherIds) {
+        if(voucherIds == null || voucherIds.isEmpty() || voucherIds.contains(null)){
+            return Result.fail("优惠券id不能为空！");
+        }
+        //路径上没有券id，拦截器拿不到，准入控制在这里逐张检查
+        if(seckillAdmission.isEnabled()){
+            //去重，同一张券只拿一个令牌
+            List<Long> ids = new ArrayList<>(new LinkedHashSet<>(voucherIds));
+            for (int i = 0; i < ids.size(); i++) {
+                SeckillAdmission.Decision decision = seckillAdmission.tryAcquire(ids.get(i));
+                if(decision != SeckillAdmission.Decision.ADMITTED){
+                    //整组被拒，前面已经拿到的令牌还回去
+                    for (int j = 0; j < i; j++) {
+                        seckillAdmission.release(ids.get(j));
+                    }
+                    return Result.fail(decision == SeckillAdmission.Decision.SOLD_OUT ? "优惠券库存不足！" : "抢购人数过多，请稍后再试！");
+                }
+            }
+        }
+        return voucherOrderService.secKillBundle(voucherIds);
+    }
+
+    /**
+     * 查询秒杀订单的处理结果：PENDING、CREATED、DUPLICATE、SOLD_OUT，只读redis
+     * @param wait 长轮询的最长等待毫秒数，0表示立即返回
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> orderStatus(@PathVariable("id") Long orderId,
+                                              @RequestParam(value = "wait", defaultValue = "0") Long wait) {
+        Long userId = UserHolder.getUser().getId();
+        if(wait <= 0){
+            DeferredResult<Result> result = new DeferredResult<>();
+            result.setResult(orderStatusCache.query(orderId, userId));
+            return result;
+        }
+        return orderStatusCache.await(orderId, userId, Math.min(wait, MAX_STATUS_WAIT_MS));
+    }
+
+    /**
+     * 订单投递的统计信息：投递耗时、积压数等
+     */
+    @GetMapping("dispatcher/stats")
+    public Result dispatcherStats() {
+        return Result.ok(orderDispatcher.stats());
+    }
+
+    /**
+     * redis与mysql库存对账的统计信息
+     */
+    @GetMapping("reconcile/stats")
+    public Result reconcileStats() {
+        return Result.ok(seckillStockReconciler.stats());
+    }
+
+    /**
+     * 秒杀准入控制的统计信息：每张券放行和拒绝的请求数
+     */
+    @GetMapping("admission/stats")
+    public Result admissionStats() {
+        return Result.ok(seckillAdmission.stats());
+    }
+
+    /**
+     * 秒杀库存预热的统计信息：上次预热的券数和耗时
+     */
+    @GetMapping("prewarm/stats")
+    public Result prewarmStats() {
+        return Result.ok(seckillStockPrewarmer.stats());
+    }
+
+    /**
+     * 未支付订单自动取消的统计信息：登记、取消、兜底处理的订单数和积压数
+     */
+    @GetMapping("expire/stats")
+    public Result expireStats() {
+        return Result.ok(unpaidOrderExpirer.stats());
+    }
+
+    /**
+     * lua脚本的调用统计：每个脚本的调用次数、失败次数和耗时分布
+     */
+    @GetMapping("scripts/stats")
+    public Result scriptStats() {
+        return Result.ok(redisScripts.stats());
+    }
 }
@@ -0,0 +1,13 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 数据库中秒杀券的库存和有效订单数，用于和redis对账
+ */
+@Data
+public class SeckillStockDTO {
+    private Long voucherId;
+    private Integer stock;
+    private Long orderCount;
+}
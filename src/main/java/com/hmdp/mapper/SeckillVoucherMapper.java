@@ -1,7 +1,12 @@
 package com.hmdp.mapper;
 
+import com.hmdp.dto.SeckillStockDTO;
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.time.LocalDateTime;
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +18,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 按voucher_id分页查询结束时间在since之后的秒杀券库存，不含订单数
+     */
+    List<SeckillStockDTO> queryStockPage(@Param("afterId") Long afterId,
+                                         @Param("since") LocalDateTime since,
+                                         @Param("limit") Integer limit);
 }
@@ -1,7 +1,12 @@
 package com.hmdp.mapper;
 
+import com.hmdp.dto.SeckillStockDTO;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +18,20 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 插入订单，该用户在这张券上已有未取消的订单时忽略
+     * @return 实际插入的行数，0表示重复订单
+     */
+    int insertIgnore(VoucherOrder voucherOrder);
+
+    /**
+     * 多行插入订单，用户在券上已有未取消订单的行被忽略
+     * @return 实际插入的行数
+     */
+    int insertIgnoreBatch(@Param("list") List<VoucherOrder> voucherOrders);
+
+    /**
+     * 统计当前分片上各券未取消的订单数，没有订单的券不返回
+     */
+    List<SeckillStockDTO> countByVouchers(@Param("voucherIds") Collection<Long> voucherIds);
 }
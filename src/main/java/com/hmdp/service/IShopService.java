@@ -2,6 +2,7 @@ package com.hmdp.service;
 
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
+import com.hmdp.utils.ScalableBloomFilter;
 import com.baomidou.mybatisplus.extension.service.IService;
 
 /**
@@ -21,4 +22,15 @@ public interface IShopService extends IService<Shop> {
     Result update(Shop shop);
 
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    //新增店铺，同时加入bloomFilter
+    Result saveShop(Shop shop);
+
+    //删除店铺和缓存
+    Result deleteShop(Long id);
+
+    ScalableBloomFilter<Long> getBloomFilter();
+
+    //分页加载全部店铺id重建bloomFilter，返回加载数，其他节点正在重建时返回-1
+    long rebuildBloomFilter();
 }
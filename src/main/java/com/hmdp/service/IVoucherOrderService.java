@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,30 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result secKillVouvher(Long voucherId);
 
+    /**
+     * 组合秒杀：一次抢购多张券，全部成功才下单
+     * @return 与券id顺序对应的订单id
+     */
+    Result secKillBundle(List<Long> voucherIds);
+
     void createVoucherOrder(VoucherOrder voucherId);
+
+    /**
+     * 批量创建订单，一个事务内完成去重、按优惠券合并扣库存和多行插入
+     * @param voucherOrders 一批订单
+     * @return 实际入库的订单数
+     */
+    int createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 组合订单在一个事务中入库，任意一张重复下单或库存不足整组回滚
+     */
+    void createVoucherOrderBundle(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消仍未支付的订单并归还数据库库存，已支付或不存在的订单跳过
+     * @param orders 待取消的订单，需要id和userId，按userId找分表
+     * @return 实际取消的订单，只有id、userId、voucherId
+     */
+    List<VoucherOrder> cancelUnpaidOrders(List<VoucherOrder> orders);
 }
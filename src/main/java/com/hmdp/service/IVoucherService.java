@@ -1,9 +1,13 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Voucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -18,4 +22,11 @@ public interface IVoucherService extends IService<Voucher> {
 
     void addSeckillVoucher(Voucher voucher);
 
+    /**
+     * 用一个pipeline把秒杀券的库存、起止时间和已购买用户写入redis
+     * @param seckillVouchers 秒杀券，stock为剩余库存
+     * @param buyers 优惠券id -> 已购买的用户id
+     */
+    void cacheSeckillVouchers(List<SeckillVoucher> seckillVouchers, Map<Long, List<Long>> buyers);
+
 }
@@ -0,0 +1,55 @@
+package com.hmdp.service.dispatcher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 订单投递的统计：投递数、消费数、投递耗时、积压数
+ */
+public class DispatcherStats {
+
+    private final String type;
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder consumed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder enqueueNanos = new LongAdder();
+    private final AtomicLong maxEnqueueNanos = new AtomicLong();
+
+    public DispatcherStats(String type) {
+        this.type = type;
+    }
+
+    public void recordEnqueue(long nanos) {
+        enqueued.increment();
+        enqueueNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxEnqueueNanos.get())) {
+            if(maxEnqueueNanos.compareAndSet(max, nanos)){
+                break;
+            }
+        }
+    }
+
+    public void recordConsumed(int count) {
+        consumed.add(count);
+    }
+
+    public void recordFailed(int count) {
+        failed.add(count);
+    }
+
+    public Map<String, Object> snapshot(long lag) {
+        long count = enqueued.sum();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("type", type);
+        map.put("enqueued", count);
+        map.put("consumed", consumed.sum());
+        map.put("failed", failed.sum());
+        map.put("lag", lag);
+        map.put("avgEnqueueMicros", count == 0 ? 0 : enqueueNanos.sum() / count / 1000);
+        map.put("maxEnqueueMicros", maxEnqueueNanos.get() / 1000);
+        return map;
+    }
+}
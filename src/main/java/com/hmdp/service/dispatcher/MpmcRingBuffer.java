@@ -0,0 +1,74 @@
+package com.hmdp.service.dispatcher;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界无锁多生产者多消费者环形队列（Vyukov算法）。
+ * 每个槽位带一个序号，生产者和消费者只通过CAS抢占位置，不加锁
+ */
+public class MpmcRingBuffer<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    public MpmcRingBuffer(int capacity) {
+        //容量取不小于capacity的2的幂，方便用位运算取模
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * 入队，队列已满返回false
+     */
+    public boolean offer(E e) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if(diff == 0){
+                if(tail.compareAndSet(pos, pos + 1)){
+                    buffer.set(index, e);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            }else if(diff < 0){
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 出队，队列为空返回null
+     */
+    public E poll() {
+        while (true) {
+            long pos = head.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+            if(diff == 0){
+                if(head.compareAndSet(pos, pos + 1)){
+                    E e = buffer.get(index);
+                    buffer.set(index, null);
+                    sequences.set(index, pos + mask + 1);
+                    return e;
+                }
+            }else if(diff < 0){
+                return null;
+            }
+        }
+    }
+
+    public long size() {
+        return Math.max(0, tail.get() - head.get());
+    }
+}
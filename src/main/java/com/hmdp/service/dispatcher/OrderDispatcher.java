@@ -0,0 +1,28 @@
+package com.hmdp.service.dispatcher;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 秒杀订单投递：redis判断完秒杀资格后，把订单交给后台异步入库。
+ * 通过 hmdp.order.dispatcher 选择实现：rabbit（默认）、ring（进程内环形队列）、stream（redis stream）
+ */
+public interface OrderDispatcher {
+
+    /**
+     * 投递订单，投递失败抛出异常
+     */
+    void dispatch(VoucherOrder voucherOrder);
+
+    /**
+     * 投递组合秒杀的一组订单，作为一条消息投递，由消费者在一个事务中全部入库
+     */
+    void dispatchBundle(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 投递耗时、积压等统计信息
+     */
+    Map<String, Object> stats();
+}
@@ -0,0 +1,209 @@
+package com.hmdp.service.dispatcher;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 订单投递的本地日志：发布前先追加 "P 订单json"（组合订单为 "B 订单json数组"），broker确认后追加 "C id,id,..."。
+ * 所有订单都确认后截断文件；文件超过 compactBytes 时只把未确认的订单写入临时文件，fsync后原子改名替换日志。
+ * 启动时把未确认的订单读出来重新发布，组合订单仍按组返回。
+ * 开启fsync时采用组提交：追加只在锁内写文件，fsync在锁外进行，等待中的线程追加的记录由同一次fsync一起落盘；
+ * 确认记录不fsync，丢失只会导致重启后重发，由消费端去重
+ */
+@Slf4j
+public class OrderJournal {
+
+    private static final String PUBLISH = "P ";
+    private static final String BUNDLE = "B ";
+    private static final String CONFIRM = "C ";
+
+    private final Path path;
+    private final Path tmpPath;
+    private final boolean fsync;
+    //日志超过这个大小时压缩
+    private final long compactBytes;
+    private volatile FileChannel channel;
+    //未确认的订单，按第一条订单id索引，组合订单整组确认
+    private final Map<Long, List<VoucherOrder>> unconfirmed = new LinkedHashMap<>();
+    //日志中未确认的订单数
+    private long pending;
+    //下次压缩的文件大小，压缩后剩下的未确认订单很多时相应推迟，避免每次确认都压缩
+    private long compactAt;
+    //已写入的发布记录序号和已fsync的序号
+    private volatile long appended;
+    private volatile long synced;
+    //fsync和压缩换文件互斥；加锁顺序总是先 this 再 syncLock
+    private final Object syncLock = new Object();
+
+    public OrderJournal(Path path, boolean fsync, long compactBytes) {
+        this.path = path;
+        this.tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        this.fsync = fsync;
+        this.compactBytes = compactBytes;
+        this.compactAt = compactBytes;
+    }
+
+    /**
+     * 读出上次未确认的订单，压缩日志后打开
+     */
+    public synchronized List<List<VoucherOrder>> open() throws IOException {
+        if(path.getParent() != null){
+            Files.createDirectories(path.getParent());
+        }
+        unconfirmed.clear();
+        if(Files.exists(path)){
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if(line.startsWith(PUBLISH)){
+                        VoucherOrder order = JSONUtil.toBean(line.substring(PUBLISH.length()), VoucherOrder.class);
+                        unconfirmed.put(order.getId(), Collections.singletonList(order));
+                    }else if(line.startsWith(BUNDLE)){
+                        List<VoucherOrder> bundle = JSONUtil.toList(line.substring(BUNDLE.length()), VoucherOrder.class);
+                        unconfirmed.put(bundle.get(0).getId(), bundle);
+                    }else if(line.startsWith(CONFIRM)){
+                        for (String id : line.substring(CONFIRM.length()).split(",")) {
+                            unconfirmed.remove(Long.valueOf(id));
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                //最后一行可能只写了一半
+                log.warn("订单日志解析中断：{}", e.getMessage());
+            }
+        }
+        //原文件在新文件改名成功前保持不变，中途宕机不会丢订单
+        compact();
+        return new ArrayList<>(unconfirmed.values());
+    }
+
+    public void append(VoucherOrder order) throws IOException {
+        long seq;
+        synchronized (this) {
+            write(line(Collections.singletonList(order)));
+            unconfirmed.put(order.getId(), Collections.singletonList(order));
+            pending++;
+            seq = ++appended;
+        }
+        sync(seq);
+    }
+
+    public void appendBundle(List<VoucherOrder> orders) throws IOException {
+        long seq;
+        synchronized (this) {
+            write(line(orders));
+            unconfirmed.put(orders.get(0).getId(), orders);
+            pending += orders.size();
+            seq = ++appended;
+        }
+        sync(seq);
+    }
+
+    public synchronized void confirm(Collection<VoucherOrder> orders) throws IOException {
+        StringBuilder sb = new StringBuilder(CONFIRM);
+        for (VoucherOrder order : orders) {
+            sb.append(order.getId()).append(',');
+        }
+        sb.setCharAt(sb.length() - 1, '\n');
+        write(sb.toString());
+        for (VoucherOrder order : orders) {
+            unconfirmed.remove(order.getId());
+        }
+        pending -= orders.size();
+        if(pending <= 0){
+            //全部确认，截断日志
+            channel.truncate(0);
+            pending = 0;
+            compactAt = compactBytes;
+        }else if(channel.size() >= compactAt){
+            compact();
+        }
+    }
+
+    public synchronized long pending() {
+        return pending;
+    }
+
+    public synchronized void close() throws IOException {
+        if(channel != null){
+            channel.close();
+        }
+    }
+
+    /**
+     * 把未确认的订单写入临时文件，fsync后原子改名替换日志，再打开新的日志继续追加
+     */
+    private void compact() throws IOException {
+        long count = 0;
+        try (FileChannel tmp = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (List<VoucherOrder> unit : unconfirmed.values()) {
+                ByteBuffer buffer = ByteBuffer.wrap(line(unit).getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    tmp.write(buffer);
+                }
+                count += unit.size();
+            }
+            tmp.force(true);
+        }
+        synchronized (syncLock) {
+            if(channel != null){
+                channel.close();
+            }
+            Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            channel = FileChannel.open(path, StandardOpenOption.WRITE);
+            //临时文件已经fsync，之前追加的记录都已落盘
+            synced = appended;
+        }
+        pending = count;
+        compactAt = Math.max(compactBytes, channel.size() * 2);
+    }
+
+    private static String line(List<VoucherOrder> unit) {
+        if(unit.size() == 1){
+            return PUBLISH + JSONUtil.toJsonStr(unit.get(0)) + "\n";
+        }
+        return BUNDLE + JSONUtil.toJsonStr(unit) + "\n";
+    }
+
+    private void write(String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        //截断后position可能大于文件长度，统一追加到文件末尾
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    //等到序号 seq 之前的发布记录都已fsync；一次fsync覆盖等待期间所有线程追加的记录
+    private void sync(long seq) throws IOException {
+        if(!fsync || synced >= seq){
+            return;
+        }
+        synchronized (syncLock) {
+            if(synced >= seq){
+                return;
+            }
+            long target = appended;
+            channel.force(false);
+            synced = target;
+        }
+    }
+}
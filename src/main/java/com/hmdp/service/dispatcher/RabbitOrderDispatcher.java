@@ -0,0 +1,201 @@
+package com.hmdp.service.dispatcher;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.MqConst;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 通过RabbitMQ投递订单，由 OrderReceiver / BatchOrderReceiver 消费。
+ * 请求线程只把订单写入本地日志和内存缓冲就返回；
+ * 专门的发布线程批量发送并等待publisher confirm，失败则退避重试，
+ * 进程宕机时未确认的订单在下次启动时从本地日志中恢复重发
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.order", name = "dispatcher", havingValue = "rabbit", matchIfMissing = true)
+public class RabbitOrderDispatcher implements OrderDispatcher {
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    @Value("${hmdp.order.publisher.journal-path:./data/order-journal.log}")
+    private String journalPath;
+
+    //每次追加日志后是否fsync
+    @Value("${hmdp.order.publisher.fsync:false}")
+    private Boolean fsync;
+
+    //本地日志超过这个大小时压缩掉已确认的订单，单位字节
+    @Value("${hmdp.order.publisher.compact-bytes:67108864}")
+    private Long compactBytes;
+
+    @Value("${hmdp.order.publisher.batch-size:100}")
+    private Integer batchSize;
+
+    @Value("${hmdp.order.publisher.confirm-timeout-ms:5000}")
+    private Long confirmTimeoutMs;
+
+    private static final long MAX_BACKOFF_MS = 10_000;
+
+    private final DispatcherStats stats = new DispatcherStats("rabbit");
+    //每个元素是一条消息：单个订单或一组组合订单
+    private final BlockingQueue<List<VoucherOrder>> buffer = new LinkedBlockingQueue<>();
+    private final ExecutorService publishExecutor = Executors.newSingleThreadExecutor();
+    private OrderJournal journal;
+    private volatile boolean running = true;
+    //当前批次中被broker退回（没有路由到队列）的消息数，只由发布线程清零和读取
+    private final AtomicInteger returned = new AtomicInteger();
+
+    @PostConstruct
+    public void init() throws IOException {
+        journal = new OrderJournal(Paths.get(journalPath), fsync, compactBytes);
+        List<List<VoucherOrder>> recovered = journal.open();
+        if(!recovered.isEmpty()){
+            log.info("从本地日志恢复未确认订单 {} 条", recovered.size());
+            buffer.addAll(recovered);
+        }
+        //mandatory消息没有路由到任何队列时broker先退回再确认，退回的整批按失败重发，订单留在本地日志中
+        rabbitTemplate.setMandatory(true);
+        rabbitTemplate.setReturnsCallback(returnedMessage -> {
+            returned.incrementAndGet();
+            log.warn("订单消息被退回：{}，exchange={}，routingKey={}", returnedMessage.getReplyText(),
+                    returnedMessage.getExchange(), returnedMessage.getRoutingKey());
+        });
+        publishExecutor.submit(new Publisher());
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException, IOException {
+        running = false;
+        publishExecutor.shutdown();
+        publishExecutor.awaitTermination(confirmTimeoutMs * 2, TimeUnit.MILLISECONDS);
+        journal.close();
+    }
+
+    @Override
+    public void dispatch(VoucherOrder voucherOrder) {
+        long start = System.nanoTime();
+        try {
+            journal.append(voucherOrder);
+        } catch (IOException e) {
+            throw new RuntimeException("写入订单日志失败", e);
+        }
+        buffer.add(Collections.singletonList(voucherOrder));
+        stats.recordEnqueue(System.nanoTime() - start);
+    }
+
+    @Override
+    public void dispatchBundle(List<VoucherOrder> voucherOrders) {
+        long start = System.nanoTime();
+        try {
+            journal.appendBundle(voucherOrders);
+        } catch (IOException e) {
+            throw new RuntimeException("写入订单日志失败", e);
+        }
+        buffer.add(new ArrayList<>(voucherOrders));
+        stats.recordEnqueue(System.nanoTime() - start);
+    }
+
+    @Override
+    public Map<String, Object> stats() {
+        long lag = -1;
+        try {
+            Long count = rabbitTemplate.execute(channel -> channel.messageCount(MqConst.ORDER_QUEUE));
+            lag = count == null ? -1 : count;
+        } catch (Exception e) {
+            log.warn("查询订单队列积压失败：{}", e.getMessage());
+        }
+        Map<String, Object> map = stats.snapshot(lag);
+        map.put("buffered", buffer.size());
+        map.put("unconfirmed", journal.pending());
+        return map;
+    }
+
+    //批量发送并等待broker确认，全部确认且没有被退回返回true
+    private boolean publish(List<List<VoucherOrder>> batch) {
+        returned.set(0);
+        try {
+            rabbitTemplate.invoke(operations -> {
+                for (List<VoucherOrder> unit : batch) {
+                    //组合订单整组作为一条消息
+                    Object payload = unit.size() == 1 ? unit.get(0) : unit;
+                    operations.convertAndSend(MqConst.ORDER_EXCHANGE, MqConst.ORDER_ROUTINGKEY, payload);
+                }
+                operations.waitForConfirmsOrDie(confirmTimeoutMs);
+                return true;
+            });
+        } catch (Exception e) {
+            log.warn("订单发布未确认，条数：{}，原因：{}", batch.size(), e.getMessage());
+            return false;
+        }
+        //退回先于确认到达，确认完成时已经计数；已路由的消息随整批重发，由消费端去重
+        if(returned.get() > 0){
+            log.warn("订单发布被退回 {} 条，整批重发，条数：{}", returned.get(), batch.size());
+            return false;
+        }
+        return true;
+    }
+
+    private class Publisher implements Runnable {
+        @Override
+        public void run() {
+            List<List<VoucherOrder>> batch = new ArrayList<>(batchSize);
+            long backoff = 100;
+            while (running || !buffer.isEmpty() || !batch.isEmpty()) {
+                try {
+                    if(batch.isEmpty()){
+                        List<VoucherOrder> first = buffer.poll(100, TimeUnit.MILLISECONDS);
+                        if(first == null){
+                            continue;
+                        }
+                        batch.add(first);
+                        buffer.drainTo(batch, batchSize - 1);
+                    }
+                    if(!publish(batch)){
+                        //退避后重试同一批，订单始终留在本地日志中
+                        stats.recordFailed(batch.size());
+                        if(!running){
+                            break;
+                        }
+                        Thread.sleep(backoff);
+                        backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+                        continue;
+                    }
+                    backoff = 100;
+                    List<VoucherOrder> confirmed = new ArrayList<>(batch.size());
+                    for (List<VoucherOrder> unit : batch) {
+                        confirmed.addAll(unit);
+                    }
+                    journal.confirm(confirmed);
+                    stats.recordConsumed(confirmed.size());
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    log.error("订单发布线程异常", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.hmdp.service.dispatcher;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通过redis stream消费者组投递订单。
+ * 处理成功后 XACK 并 XDEL，所以 XLEN 就是积压数；
+ * 消费者宕机留下的 pending 消息由定时任务 XCLAIM 回来重新处理
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.order", name = "dispatcher", havingValue = "stream")
+public class RedisStreamOrderDispatcher implements OrderDispatcher {
+
+    public static final String STREAM_KEY = "stream.orders";
+    public static final String GROUP = "g1";
+    //组合订单的消息只有这一个字段，值为订单json数组
+    private static final String BUNDLE_FIELD = "bundle";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Value("${hmdp.order.stream.consumers:2}")
+    private Integer consumers;
+
+    @Value("${hmdp.order.batch.size:100}")
+    private Integer batchSize;
+
+    //pending消息空闲多久后被认领，单位毫秒
+    @Value("${hmdp.order.stream.reclaim-idle-ms:60000}")
+    private Long reclaimIdleMs;
+
+    //本节点的消费者名前缀，区分不同jvm
+    private final String consumerPrefix = UUID.randomUUID().toString(true) + "-";
+
+    private final DispatcherStats stats = new DispatcherStats("stream");
+
+    private ExecutorService consumerExecutor;
+    private volatile boolean running = true;
+
+    @PostConstruct
+    public void init() {
+        createGroup();
+        consumerExecutor = Executors.newFixedThreadPool(consumers);
+        for (int i = 0; i < consumers; i++) {
+            consumerExecutor.submit(new OrderConsumer(consumerPrefix + i));
+        }
+    }
+
+    //stream不存在时一起创建（MKSTREAM），只忽略消费者组已存在（BUSYGROUP），其他错误直接抛出
+    private void createGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(STREAM_KEY.getBytes(StandardCharsets.UTF_8), GROUP, ReadOffset.from("0"), true));
+        } catch (RuntimeException e) {
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if(t.getMessage() != null && t.getMessage().contains("BUSYGROUP")){
+                    log.debug("消费者组已存在：{}", GROUP);
+                    return;
+                }
+            }
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        running = false;
+        consumerExecutor.shutdown();
+        consumerExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void dispatch(VoucherOrder voucherOrder) {
+        long start = System.nanoTime();
+        Map<String, String> fields = new HashMap<>(4);
+        fields.put("id", voucherOrder.getId().toString());
+        fields.put("userId", voucherOrder.getUserId().toString());
+        fields.put("voucherId", voucherOrder.getVoucherId().toString());
+        stringRedisTemplate.opsForStream().add(STREAM_KEY, fields);
+        stats.recordEnqueue(System.nanoTime() - start);
+    }
+
+    @Override
+    public void dispatchBundle(List<VoucherOrder> voucherOrders) {
+        long start = System.nanoTime();
+        //组合订单整组作为一条消息
+        stringRedisTemplate.opsForStream().add(STREAM_KEY,
+                Collections.singletonMap(BUNDLE_FIELD, JSONUtil.toJsonStr(voucherOrders)));
+        stats.recordEnqueue(System.nanoTime() - start);
+    }
+
+    @Override
+    public Map<String, Object> stats() {
+        Long size = stringRedisTemplate.opsForStream().size(STREAM_KEY);
+        return stats.snapshot(size == null ? 0 : size);
+    }
+
+    /**
+     * 认领长时间未确认的消息并重新处理
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.stream.reclaim-interval-ms:30000}")
+    public void reclaimPending() {
+        PendingMessages pending = stringRedisTemplate.opsForStream()
+                .pending(STREAM_KEY, GROUP, Range.unbounded(), batchSize);
+        List<RecordId> idle = new ArrayList<>();
+        for (PendingMessage message : pending) {
+            if(message.getElapsedTimeSinceLastDelivery().toMillis() >= reclaimIdleMs){
+                idle.add(message.getId());
+            }
+        }
+        if(idle.isEmpty()){
+            return;
+        }
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .claim(STREAM_KEY, GROUP, consumerPrefix + "reclaim",
+                        Duration.ofMillis(reclaimIdleMs), idle.toArray(new RecordId[0]));
+        log.info("认领pending订单 {} 条", records.size());
+        handle(records);
+    }
+
+    private void handle(List<MapRecord<String, Object, Object>> records) {
+        if(records == null || records.isEmpty()){
+            return;
+        }
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        List<RecordId> orderIds = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            Object bundle = record.getValue().get(BUNDLE_FIELD);
+            if(bundle != null){
+                handleBundle(record.getId(), JSONUtil.toList(bundle.toString(), VoucherOrder.class));
+                continue;
+            }
+            orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), false));
+            orderIds.add(record.getId());
+        }
+        if(orders.isEmpty()){
+            return;
+        }
+        RecordId[] ids = orderIds.toArray(new RecordId[0]);
+        try {
+            voucherOrderService.createVoucherOrders(orders);
+        } catch (Exception e) {
+            //不确认，留在pending中等待认领重试
+            stats.recordFailed(orders.size());
+            log.error("处理订单异常，条数：{}", orders.size(), e);
+            return;
+        }
+        stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, GROUP, ids);
+        stringRedisTemplate.opsForStream().delete(STREAM_KEY, ids);
+        stats.recordConsumed(orders.size());
+    }
+
+    private void handleBundle(RecordId id, List<VoucherOrder> bundle) {
+        try {
+            voucherOrderService.createVoucherOrderBundle(bundle);
+        } catch (Exception e) {
+            stats.recordFailed(bundle.size());
+            log.error("处理组合订单异常，条数：{}", bundle.size(), e);
+            return;
+        }
+        stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, GROUP, id);
+        stringRedisTemplate.opsForStream().delete(STREAM_KEY, id);
+        stats.recordConsumed(bundle.size());
+    }
+
+    private class OrderConsumer implements Runnable {
+
+        private final String name;
+
+        OrderConsumer(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    handle(read());
+                } catch (Exception e) {
+                    log.error("读取订单stream异常", e);
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        //read 的 StreamOffset 参数是泛型可变参数，编译器会提示 unchecked generic array creation；
+        //这里只传一个 StreamOffset<String>，数组元素类型确定，不存在堆污染
+        @SuppressWarnings("unchecked")
+        private List<MapRecord<String, Object, Object>> read() {
+            return stringRedisTemplate.opsForStream().read(
+                    Consumer.from(GROUP, name),
+                    StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                    StreamOffset.create(STREAM_KEY, ReadOffset.lastConsumed())
+            );
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.hmdp.service.dispatcher;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 进程内环形队列投递订单，适合单节点部署；节点宕机时队列中未入库的订单会丢失。
+ * 入库失败的订单先重试，仍失败的由对账任务按redis中的购买用户重新投递
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.order", name = "dispatcher", havingValue = "ring")
+public class RingBufferOrderDispatcher implements OrderDispatcher {
+
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Value("${hmdp.order.ring.capacity:65536}")
+    private Integer capacity;
+
+    @Value("${hmdp.order.ring.consumers:2}")
+    private Integer consumers;
+
+    @Value("${hmdp.order.batch.size:100}")
+    private Integer batchSize;
+
+    //队列满时最多等待的时间
+    private static final long OFFER_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    //入库失败时的最多尝试次数，重试间隔从200毫秒开始翻倍
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final DispatcherStats stats = new DispatcherStats("ring");
+
+    //每个元素是单个订单或一组组合订单
+    private MpmcRingBuffer<List<VoucherOrder>> ringBuffer;
+    private ExecutorService consumerExecutor;
+    private volatile boolean running = true;
+
+    @PostConstruct
+    public void init() {
+        ringBuffer = new MpmcRingBuffer<>(capacity);
+        consumerExecutor = Executors.newFixedThreadPool(consumers);
+        for (int i = 0; i < consumers; i++) {
+            consumerExecutor.submit(new OrderConsumer());
+        }
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        running = false;
+        consumerExecutor.shutdown();
+        consumerExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void dispatch(VoucherOrder voucherOrder) {
+        offer(Collections.singletonList(voucherOrder));
+    }
+
+    @Override
+    public void dispatchBundle(List<VoucherOrder> voucherOrders) {
+        offer(new ArrayList<>(voucherOrders));
+    }
+
+    private void offer(List<VoucherOrder> unit) {
+        long start = System.nanoTime();
+        while (!ringBuffer.offer(unit)) {
+            if(System.nanoTime() - start > OFFER_TIMEOUT_NANOS){
+                throw new RuntimeException("订单队列已满");
+            }
+            LockSupport.parkNanos(10_000);
+        }
+        stats.recordEnqueue(System.nanoTime() - start);
+    }
+
+    @Override
+    public Map<String, Object> stats() {
+        return stats.snapshot(ringBuffer.size());
+    }
+
+    private class OrderConsumer implements Runnable {
+        @Override
+        public void run() {
+            List<VoucherOrder> batch = new ArrayList<>(batchSize);
+            //停止后把队列里剩下的订单处理完再退出
+            while (running || ringBuffer.size() > 0) {
+                List<VoucherOrder> unit;
+                while (batch.size() < batchSize && (unit = ringBuffer.poll()) != null) {
+                    if(unit.size() == 1){
+                        batch.add(unit.get(0));
+                    }else{
+                        createBundle(unit);
+                    }
+                }
+                if(batch.isEmpty()){
+                    LockSupport.parkNanos(1_000_000);
+                    continue;
+                }
+                createOrders(batch);
+                batch.clear();
+            }
+        }
+
+        //整批重试几次仍失败，再逐条入库，一条坏订单不影响同批的其他订单
+        private void createOrders(List<VoucherOrder> batch) {
+            if(retry(() -> voucherOrderService.createVoucherOrders(batch), batch.size())){
+                return;
+            }
+            for (VoucherOrder order : batch) {
+                try {
+                    voucherOrderService.createVoucherOrders(Collections.singletonList(order));
+                    stats.recordConsumed(1);
+                } catch (Exception e) {
+                    //redis中已登记该用户，库里没有订单，由对账任务重新投递
+                    stats.recordFailed(1);
+                    log.error("订单入库失败，留给对账任务重新投递：{}", order, e);
+                }
+            }
+        }
+
+        private void createBundle(List<VoucherOrder> bundle) {
+            if(!retry(() -> voucherOrderService.createVoucherOrderBundle(bundle), bundle.size())){
+                stats.recordFailed(bundle.size());
+                log.error("组合订单入库失败，留给对账任务重新投递：{}", bundle);
+            }
+        }
+
+        private boolean retry(Runnable action, int size) {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    action.run();
+                    stats.recordConsumed(size);
+                    return true;
+                } catch (Exception e) {
+                    log.error("处理订单异常，第 {} 次，条数：{}", attempt, size, e);
+                    if(attempt >= MAX_ATTEMPTS){
+                        return false;
+                    }
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100L << attempt));
+                }
+            }
+        }
+    }
+}
@@ -15,7 +15,9 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisScripts;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -24,9 +26,12 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -47,6 +52,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisScripts redisScripts;
+    @Resource
+    private CacheClient cacheClient;
 
     @Override
     public Result queryHotBlog(Integer current) {
@@ -57,11 +66,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 获取当前页数据
         List<Blog> records = page.getRecords();
         // 查询用户
+        fillUsers(records);
         records.forEach(blog ->{
-            Long userId = blog.getUserId();
-            User user = userService.getById(userId);
-            blog.setName(user.getNickName());
-            blog.setIcon(user.getIcon());
             //用户是否点赞
             blog.setIsLiked(isBlogLiked(blog));
         });
@@ -72,15 +78,36 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogById(Long id) {
         Blog blog = getById(id);
 
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+        fillUsers(Collections.singletonList(blog));
         //用户是否点赞
         blog.setIsLiked(isBlogLiked(blog));
         return Result.ok(blog);
     }
 
+    //一次批量查出这些博客的作者，填充昵称和头像
+    private void fillUsers(List<Blog> blogs) {
+        if(blogs.isEmpty()){
+            return;
+        }
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        Map<Long, UserDTO> users = queryUsers(userIds);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if(user != null){
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+    }
+
+    //先查缓存，未命中的用户合并成一次 IN 查询
+    private Map<Long, UserDTO> queryUsers(Collection<Long> userIds) {
+        return cacheClient.queryBatch(RedisConstants.CACHE_USER_KEY, userIds, UserDTO.class,
+                ids -> userService.listByIds(ids).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
     private Boolean isBlogLiked(Blog blog) {
         String key = RedisConstants.BLOG_LIKED_KEY + blog.getId();
         Double score = stringRedisTemplate.opsForZSet().score(key, blog.getUserId().toString());
@@ -92,27 +119,16 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result likeBlog(Long id) {
         Long userId = UserHolder.getUser().getId();
         String key = RedisConstants.BLOG_LIKED_KEY + id;
-        //判断该用户是否点过赞（redis的zset(由于后面要进行点赞用户的排序)集合中是否有该用户）
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        if(score == null){
-            //未点赞
-            // 修改数据库点赞数量+1
-            boolean isSuccess = update()
-                    .setSql("liked = liked + 1").eq("id", id).update();
-            // 将该用户加入redis的set集合中
-            if(isSuccess){
-                //根据时间戳进行排序
-                stringRedisTemplate.opsForZSet().add(key, userId.toString(),System.currentTimeMillis());
-            }
-        }else{
-            //已点赞
-            // 修改数据库点赞数量-1
-            boolean isSuccess = update()
-                    .setSql("liked = liked - 1").eq("id", id).update();
-            // 将该用户从redis的set集合中移除
-            if(isSuccess){
-                stringRedisTemplate.opsForZSet().remove(key, userId.toString());
-            }
+        //判断是否点过赞并切换点赞状态（redis的zset(由于后面要进行点赞用户的排序)），返回1点赞，-1取消点赞
+        Long delta = redisScripts.execute(RedisScripts.BLOG_LIKE, Collections.singletonList(key),
+                userId.toString(), String.valueOf(System.currentTimeMillis()));
+        // 修改数据库点赞数量
+        boolean isSuccess = update()
+                .setSql("liked = liked + " + delta).eq("id", id).update();
+        if(!isSuccess){
+            //博客不存在，把redis里的点赞状态切换回去
+            redisScripts.execute(RedisScripts.BLOG_LIKE, Collections.singletonList(key),
+                    userId.toString(), String.valueOf(System.currentTimeMillis()));
         }
 
         return Result.ok();
@@ -126,13 +142,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             return Result.ok(Collections.emptyList());
         }
         List<Long> ids = userIds.stream().map(Long::valueOf).collect(Collectors.toList());
-        //不能直接用listById，因为根据数据库查找默认按照id升序返回，故应在代码后加ORDER BY FIELD (id,ids)
-        String strIds = StrUtil.join(",", ids);
-        List<UserDTO> userDTOS = userService
-                .query().in("id",ids).last("order by field (id,"+strIds+")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        //批量查询的结果按ids的顺序返回，不需要再 ORDER BY FIELD
+        List<UserDTO> userDTOS = new ArrayList<>(queryUsers(ids).values());
         return Result.ok(userDTOS);
     }
 
@@ -184,10 +195,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         String strIds = StrUtil.join(",", ids);
         List<Blog> blogs = query().in("id", ids).last("order by field (id," + strIds + ")").list();
+        fillUsers(blogs);
         blogs.forEach(blog -> {
-            User user = userService.getById(blog.getUserId());
-            blog.setName(user.getNickName());
-            blog.setIcon(user.getIcon());
             //用户是否点赞
             blog.setIsLiked(isBlogLiked(blog));
         });
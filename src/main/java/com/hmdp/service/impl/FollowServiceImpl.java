@@ -10,6 +10,7 @@ import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisScripts;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -34,6 +35,8 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
+    private RedisScripts redisScripts;
+    @Resource
     private IUserService userService;
 
     @Override
@@ -42,22 +45,26 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         String key = RedisConstants.FOLLOW_KEY + userId;
         //是否关注
         if(isFollowed){
-            //关注
+            //关注，redis集合里已有说明已经关注过，不再重复写库
+            Long added = redisScripts.execute(RedisScripts.FOLLOW, Collections.singletonList(key),
+                    followUserId.toString(), "1");
+            if(added == null || added == 0){
+                return Result.ok();
+            }
             Follow follow = new Follow();
             follow.setFollowUserId(followUserId);
             follow.setUserId(userId);
             boolean isSuccess = save(follow);
-            if(isSuccess){
-                stringRedisTemplate.opsForSet().add(key, followUserId.toString());
+            if(!isSuccess){
+                stringRedisTemplate.opsForSet().remove(key, followUserId.toString());
             }
         }else{
-            //取消关注
+            //取消关注，数据库删除是幂等的，不依赖redis中是否存在
             LambdaQueryWrapper<Follow> wrapper = new LambdaQueryWrapper<>();
             wrapper.eq(Follow::getFollowUserId,followUserId).eq(Follow::getUserId,userId);
-            boolean isSuccess = remove(wrapper);
-            if(isSuccess){
-                stringRedisTemplate.opsForSet().remove(key, followUserId.toString());
-            }
+            remove(wrapper);
+            redisScripts.execute(RedisScripts.FOLLOW, Collections.singletonList(key),
+                    followUserId.toString(), "0");
         }
         return Result.ok();
     }
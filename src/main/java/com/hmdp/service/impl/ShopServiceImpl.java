@@ -5,7 +5,6 @@ import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
@@ -14,10 +13,11 @@ import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.*;
 import jodd.typeconverter.impl.LocalDateTimeConverter;
-import org.redisson.api.RBloomFilter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
@@ -31,6 +31,7 @@ import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -55,19 +56,74 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
-    private RBloomFilter<Long> bloomFilter = null;
+    @Value("${hmdp.bloom.shop.expected-insertions:10000}")
+    private Long bloomExpectedInsertions;
+    @Value("${hmdp.bloom.shop.false-positive-rate:0.01}")
+    private Double bloomFalsePositiveRate;
+    //重建时每页加载的店铺数
+    @Value("${hmdp.bloom.shop.page-size:1000}")
+    private Integer bloomPageSize;
+
+    private ScalableBloomFilter<Long> bloomFilter = null;
 
     @PostConstruct // 项目启动的时候执行该方法，也可以理解为在spring容器初始化的时候执行该方法
     public void init() {
-        // 启动项目时初始化bloomFilter
-        bloomFilter = bloomFilterUtil.create("bloomFilter", 100, 0.05);
-        LambdaQueryWrapper<Shop> wrapper = new LambdaQueryWrapper<>();
-        List<Shop> shopList = shopMapper.selectList(wrapper);
-        shopList.forEach(shop->{
-            bloomFilter.add(shop.getId());
+        // 启动时只创建bloomFilter对象，redis中还没有时由 ShopBloomFilterRebuilder 在后台分页加载
+        bloomFilter = bloomFilterUtil.createScalable(RedisConstants.SHOP_BLOOM_KEY, bloomExpectedInsertions, bloomFalsePositiveRate);
+        // 逻辑过期的店铺缓存（热点店铺）快到期时由后台批量查库提前刷新
+        cacheClient.refreshAhead(RedisConstants.CACHE_SHOP_KEY,
+                (Collection<Long> ids) -> listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public ScalableBloomFilter<Long> getBloomFilter() {
+        return bloomFilter;
+    }
+
+    //按id分页只读出店铺id，全部加载到新一代bloomFilter后切换
+    @Override
+    public long rebuildBloomFilter() {
+        return bloomFilter.rebuild(count(), sink -> {
+            long lastId = 0;
+            while (true) {
+                List<Shop> page = query().select("id").gt("id", lastId)
+                        .orderByAsc("id").last("limit " + bloomPageSize).list();
+                page.forEach(shop -> sink.accept(shop.getId()));
+                if(page.size() < bloomPageSize){
+                    return;
+                }
+                lastId = page.get(page.size() - 1).getId();
+            }
         });
     }
 
+    //新增店铺，写入数据库后加入bloomFilter和geo
+    @Override
+    public Result saveShop(Shop shop) {
+        save(shop);
+        bloomFilter.add(shop.getId());
+        if(shop.getTypeId() != null && shop.getX() != null && shop.getY() != null){
+            stringRedisTemplate.opsForGeo().add(RedisConstants.SHOP_GEO_KEY + shop.getTypeId(),
+                    new Point(shop.getX(), shop.getY()), shop.getId().toString());
+        }
+        return Result.ok(shop.getId());
+    }
+
+    //删除店铺，bloomFilter不能删除元素，只记录删除数，删除多了由定时任务重建
+    @Override
+    public Result deleteShop(Long id) {
+        Shop shop = getById(id);
+        if(shop == null){
+            return Result.fail("店铺不存在");
+        }
+        removeById(id);
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        stringRedisTemplate.opsForGeo().remove(RedisConstants.SHOP_GEO_KEY + shop.getTypeId(), id.toString());
+        bloomFilter.recordDelete();
+        return Result.ok();
+    }
+
     //根据id查询商铺信息
     @Override
     public Result queryById(Long id) {
@@ -78,9 +134,13 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
         //用逻辑过期来解决缓存击穿(热点key)
         //Shop shop =  queryWithLogicalLock(id);
-        Shop shop = cacheClient.queryWithLogicalLock(
-                RedisConstants.CACHE_SHOP_KEY,1L,Shop.class,
-                id3->getById(id3),20L,TimeUnit.SECONDS);
+        //Shop shop = cacheClient.queryWithLogicalLock(
+        //        RedisConstants.CACHE_SHOP_KEY,id,Shop.class,
+        //        id3->getById(id3),20L,TimeUnit.SECONDS);
+
+        //按访问热度自动选择：普通店铺用布隆过滤器+互斥锁，热点店铺用逻辑过期
+        Shop shop = cacheClient.query(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, bloomFilter,
+                this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         if(shop == null){
             return Result.fail("店铺不存在");
@@ -188,12 +248,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         Shop shop = shopMapper.selectById(id);
         //模拟重建缓存延迟
         Thread.sleep(200L);
-        //封装RedisData
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        //写入redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY+shop.getId(),JSONUtil.toJsonStr(redisData));
+        //写入redis，按配置的缓存编码带上逻辑过期时间
+        cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop, expireSeconds, TimeUnit.SECONDS);
     }
 
     private boolean tryLock(String key){
@@ -217,8 +273,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //先更新数据库
         shopMapper.updateById(shop);
 
-        //再删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        //再删除缓存，同时通知各节点丢弃本地缓存
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
@@ -8,30 +8,39 @@ import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.MqConst;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.service.dispatcher.OrderDispatcher;
+import com.hmdp.service.job.UnpaidOrderExpirer;
+import com.hmdp.utils.OrderShards;
+import com.hmdp.utils.OrderStatusCache;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.SegmentStock;
 import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.amqp.core.AmqpTemplate;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * <p>
@@ -48,43 +57,35 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private OrderShards orderShards;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
-    private RabbitTemplate rabbitTemplate;
+    private OrderDispatcher orderDispatcher;
 
     @Resource
     private RedissonClient redissonClient;
+    @Resource
+    private SegmentStock segmentStock;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+    @Resource
+    private OrderStatusCache orderStatusCache;
+    @Resource
+    private RedisScripts redisScripts;
 
+    //组合秒杀一次最多的券数
+    @Value("${hmdp.seckill.bundle.max-size:5}")
+    private Integer bundleMaxSize;
+    @Lazy
+    @Resource
+    private UnpaidOrderExpirer unpaidOrderExpirer;
+
+    //订单状态：未支付、已取消
+    private static final int STATUS_UNPAID = 1;
+    private static final int STATUS_CANCELED = 4;
 
-    public static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static{
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
 
-//    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-//    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-//
-//    @PostConstruct
-//    public void init(){
-//        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-//    }
-//    private class VoucherOrderHandler implements Runnable{
-//        @Override
-//        public void run() {
-//            while(true){
-//                try {
-//                    VoucherOrder voucherOrder = orderTasks.take();
-//                    handleVoucherOrder(voucherOrder);
-//                } catch (Exception e) {
-//                    log.info("处理订单异常："+e);
-//                }
-//            }
-//        }
-//    }
 
     public void handleVoucherOrder(VoucherOrder voucherOrder) {
         Long userId = voucherOrder.getUserId();
@@ -109,31 +110,129 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     public Result secKillVouvher(Long voucherId) {
         //用lua脚本先原子性判断是否能进行秒杀
         Long userId = UserHolder.getUser().getId();
+        //本地已标记售罄，直接返回
+        if(soldOutRegistry.isSoldOut(voucherId)){
+            return Result.fail("优惠券库存不足！");
+        }
 
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString()
-        );
-        int r = result.intValue();
+        int r = (int) seckill(voucherId, userId);
+        if(r == 1){
+            soldOutRegistry.markSoldOut(voucherId);
+        }
+        if(r == 4){
+            return Result.fail("活动未开始！");
+        }
+        if(r == 5){
+            return Result.fail("活动已经结束！");
+        }
         if(r != 0){
             return Result.fail(r == 1?"优惠券库存不足！" : "一人只能下一单！");
         }
 
         //异步执行
-        //将下单信息加入阻塞队列
+        //将下单信息交给订单投递组件
         VoucherOrder voucherOrder = new VoucherOrder();
-        long orderId = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderId);
         voucherOrder.setUserId(userId);
         voucherOrder.setVoucherId(voucherId);
-        //orderTasks.add(voucherOrder);
-        rabbitTemplate.convertAndSend(MqConst.ORDER_EXCHANGE,MqConst.ORDER_ROUTINGKEY,voucherOrder);
+        long orderId;
+        try {
+            orderId = orderShards.nextOrderId(userId);
+            voucherOrder.setId(orderId);
+            orderDispatcher.dispatch(voucherOrder);
+        } catch (RuntimeException e) {
+            //redis中已经扣了库存、登记了用户，还回去，否则要等对账才能恢复，用户也没法重新抢
+            log.error("订单投递失败，归还redis库存，userId={}，voucherId={}", userId, voucherId, e);
+            unpaidOrderExpirer.returnRedisStock(Collections.singletonList(voucherOrder));
+            return Result.fail("下单失败，请稍后重试！");
+        }
 
        // proxy = (IVoucherOrderService) AopContext.currentProxy();
         //返回订单id
         return Result.ok(orderId);
     }
 
+    //组合秒杀：一次lua调用判断并扣减多张券，全部成功才下单
+    @Override
+    public Result secKillBundle(List<Long> voucherIds) {
+        Long userId = UserHolder.getUser().getId();
+        //去重，保持请求中的顺序
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(voucherIds));
+        if(ids.isEmpty() || ids.size() > bundleMaxSize){
+            return Result.fail("一次最多抢购 " + bundleMaxSize + " 张券！");
+        }
+        for (Long voucherId : ids) {
+            if(soldOutRegistry.isSoldOut(voucherId)){
+                return Result.fail("优惠券库存不足！");
+            }
+        }
+        List<String> args = new ArrayList<>(ids.size() + 1);
+        args.add(userId.toString());
+        for (Long voucherId : ids) {
+            args.add(voucherId.toString());
+        }
+        Long result = redisScripts.execute(RedisScripts.SECKILL_BUNDLE, Collections.emptyList(), args.toArray());
+        if(result != 0){
+            //错误码 * 100 + 出错的券序号
+            int r = (int) (result / 100);
+            Long voucherId = ids.get((int) (result % 100) - 1);
+            if(r == 1){
+                soldOutRegistry.markSoldOut(voucherId);
+            }
+            if(r == 3){
+                return Result.fail("该优惠券不支持组合抢购！");
+            }
+            if(r == 4){
+                return Result.fail("活动未开始！");
+            }
+            if(r == 5){
+                return Result.fail("活动已经结束！");
+            }
+            return Result.fail(r == 1?"优惠券库存不足！" : "一人只能下一单！");
+        }
+
+        List<VoucherOrder> orders = new ArrayList<>(ids.size());
+        for (Long voucherId : ids) {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setUserId(userId);
+            voucherOrder.setVoucherId(voucherId);
+            orders.add(voucherOrder);
+        }
+        //一次分配全部订单id，整组作为一条消息投递
+        long[] orderIds;
+        try {
+            orderIds = orderShards.nextOrderIds(userId, ids.size());
+            for (int i = 0; i < orders.size(); i++) {
+                orders.get(i).setId(orderIds[i]);
+            }
+            orderDispatcher.dispatchBundle(orders);
+        } catch (RuntimeException e) {
+            //投递失败，整组还回redis库存
+            log.error("组合订单投递失败，归还redis库存，userId={}，voucherIds={}", userId, ids, e);
+            unpaidOrderExpirer.returnRedisStock(orders);
+            return Result.fail("下单失败，请稍后重试！");
+        }
+        //返回订单id
+        return Result.ok(orderIds);
+    }
+
+    //执行redis中的秒杀资格判断：0成功，1库存不足，2重复下单，4未开始，5已结束
+    private long seckill(Long voucherId, Long userId) {
+        Integer segments = segmentStock.getSegments(voucherId);
+        if(segments != null){
+            return segmentStock.seckill(voucherId, userId, segments);
+        }
+        Long result = redisScripts.execute(RedisScripts.SECKILL,
+                Collections.emptyList(),
+                voucherId.toString(), userId.toString()
+        );
+        //返回3说明该券是分段库存
+        if(result == 3){
+            segments = segmentStock.loadSegments(voucherId);
+            return segments == null ? 1 : segmentStock.seckill(voucherId, userId, segments);
+        }
+        return result;
+    }
+
 /*    //秒杀代金券
     @Override
     public Result secKillVouvher(Long voucherId) {
@@ -166,7 +265,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 
         //创建分布式锁1
-//        SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
+//        SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate, redisScripts);
 //        boolean isLock = lock.tryLock(1200);
         RLock lock = redissonClient.getLock("lock:order:" + userId);
         boolean isLock = lock.tryLock();
@@ -188,12 +287,14 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder){
-        //一人一单
-        Long userId = voucherOrder.getUserId();
+        //一人一单，由 (voucher_id, user_id, active) 唯一索引保证，重复订单（包括消息重投）插入时被忽略；
+        //已取消的订单 active 为NULL，不占唯一索引，重新购买时插入新的一行
         Long voucherId = voucherOrder.getVoucherId();
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-        if(count > 0){
+        int shard = orderShards.shardOf(voucherOrder.getUserId());
+        int inserted = orderShards.call(shard, () -> getBaseMapper().insertIgnore(voucherOrder));
+        if(inserted == 0){
             log.info("一人限购一单！");
+            orderStatusCache.record(Collections.singletonList(voucherOrder), OrderStatusCache.DUPLICATE);
             return ;
         }
         //扣库存
@@ -203,9 +304,222 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .eq("voucher_id", voucherId).gt("stock",0).update();
         if(!update){
             log.info("库存不足！");
+            //回滚刚插入的订单
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            orderStatusCache.record(Collections.singletonList(voucherOrder), OrderStatusCache.SOLD_OUT);
             return ;
         }
-        //生成订单
-        save(voucherOrder);
+        orderStatusCache.record(Collections.singletonList(voucherOrder), OrderStatusCache.CREATED);
+        unpaidOrderExpirer.schedule(Collections.singletonList(voucherOrder));
+    }
+
+    @Override
+    @Transactional
+    public int createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        //批内按 (userId, voucherId) 去重，同一用户同一券只保留第一条
+        Map<String, VoucherOrder> unique = new LinkedHashMap<>(voucherOrders.size());
+        List<VoucherOrder> duplicates = new ArrayList<>();
+        for (VoucherOrder order : voucherOrders) {
+            if(unique.putIfAbsent(order.getUserId() + ":" + order.getVoucherId(), order) != null){
+                duplicates.add(order);
+            }
+        }
+        //按优惠券分组，每张券只扣一次库存
+        Map<Long, List<VoucherOrder>> byVoucher = new LinkedHashMap<>();
+        for (VoucherOrder order : unique.values()) {
+            byVoucher.computeIfAbsent(order.getVoucherId(), k -> new ArrayList<>()).add(order);
+        }
+        int saved = 0;
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            //先按分表多行插入，再按实际插入的行数扣库存，重投的订单不会再占库存
+            List<VoucherOrder> created = new ArrayList<>();
+            List<VoucherOrder> inserted = new ArrayList<>();
+            for (Map.Entry<Integer, List<VoucherOrder>> shard : orderShards.groupByShard(entry.getValue()).entrySet()) {
+                insertOrders(shard.getKey(), shard.getValue(), created, inserted, duplicates);
+            }
+            if(!inserted.isEmpty()){
+                int deducted = deductStock(voucherId, inserted.size());
+                if(deducted < inserted.size()){
+                    //库存不够时删掉多出来的新订单，只有它们算售罄
+                    List<VoucherOrder> rejected = new ArrayList<>(inserted.subList(deducted, inserted.size()));
+                    inserted.subList(deducted, inserted.size()).clear();
+                    deleteOrders(rejected);
+                    log.info("库存不足！voucherId={}，丢弃 {} 条订单", voucherId, rejected.size());
+                    orderStatusCache.record(rejected, OrderStatusCache.SOLD_OUT);
+                }
+                unpaidOrderExpirer.schedule(inserted);
+                saved += inserted.size();
+            }
+            created.addAll(inserted);
+            orderStatusCache.record(created, OrderStatusCache.CREATED);
+        }
+        orderStatusCache.record(duplicates, OrderStatusCache.DUPLICATE);
+        return saved;
+    }
+
+    //在一张分表内多行插入：id已在库里的是重投的同一笔订单，不再插入，放入 created；
+    //新插入的放入 inserted；被唯一索引忽略的是同一用户的另一笔订单，放入 duplicates
+    private void insertOrders(int shard, List<VoucherOrder> orders, List<VoucherOrder> created,
+                              List<VoucherOrder> inserted, List<VoucherOrder> duplicates) {
+        orderShards.run(shard, () -> {
+            List<VoucherOrder> fresh = new ArrayList<>(orders);
+            created.addAll(splitByExisting(fresh));
+            if(fresh.isEmpty()){
+                return;
+            }
+            int count = getBaseMapper().insertIgnoreBatch(fresh);
+            if(count < fresh.size()){
+                //插入后还不在库里的被唯一索引忽略了
+                List<VoucherOrder> ignored = new ArrayList<>(fresh);
+                splitByExisting(ignored);
+                fresh.removeAll(ignored);
+                duplicates.addAll(ignored);
+            }
+            inserted.addAll(fresh);
+        });
+    }
+
+    //把库里已存在的订单从 orders 中移出并返回，orders 中只留下库里没有的
+    private List<VoucherOrder> splitByExisting(List<VoucherOrder> orders) {
+        List<Long> ids = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            ids.add(order.getId());
+        }
+        Set<Long> existing = new HashSet<>();
+        for (VoucherOrder order : query().select("id").in("id", ids).list()) {
+            existing.add(order.getId());
+        }
+        List<VoucherOrder> found = new ArrayList<>();
+        for (Iterator<VoucherOrder> it = orders.iterator(); it.hasNext(); ) {
+            VoucherOrder order = it.next();
+            if(existing.contains(order.getId())){
+                found.add(order);
+                it.remove();
+            }
+        }
+        return found;
+    }
+
+    private void deleteOrders(List<VoucherOrder> orders) {
+        for (Map.Entry<Integer, List<VoucherOrder>> shard : orderShards.groupByShard(orders).entrySet()) {
+            List<Long> ids = new ArrayList<>(shard.getValue().size());
+            for (VoucherOrder order : shard.getValue()) {
+                ids.add(order.getId());
+            }
+            orderShards.run(shard.getKey(), () -> getBaseMapper().deleteBatchIds(ids));
+        }
+    }
+
+    @Override
+    @Transactional
+    public void createVoucherOrderBundle(List<VoucherOrder> voucherOrders) {
+        List<Long> ids = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder order : voucherOrders) {
+            ids.add(order.getId());
+        }
+        //同一用户的订单在同一张分表
+        int shard = orderShards.shardOf(voucherOrders.get(0).getUserId());
+        //整组在一个事务里入库，库里已有这些id说明是消息重投
+        if(orderShards.call(shard, () -> query().in("id", ids).count()) == voucherOrders.size()){
+            orderStatusCache.record(voucherOrders, OrderStatusCache.CREATED);
+            return;
+        }
+        for (VoucherOrder order : voucherOrders) {
+            int inserted = orderShards.call(shard, () -> getBaseMapper().insertIgnore(order));
+            int status = 0;
+            if(inserted == 0){
+                status = OrderStatusCache.DUPLICATE;
+            }else if(!seckillVoucherService.update().setSql("stock = stock - 1")
+                    .eq("voucher_id", order.getVoucherId()).gt("stock", 0).update()){
+                status = OrderStatusCache.SOLD_OUT;
+            }
+            if(status != 0){
+                //有一张失败整组回滚
+                log.info("组合订单入库失败，userId={}，voucherId={}，状态：{}", order.getUserId(), order.getVoucherId(), status);
+                TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+                orderStatusCache.record(voucherOrders, status);
+                //回滚后把redis里这一组扣掉的库存还回去；重复下单的那张券用户本来就买过，不能移出购买集合
+                List<VoucherOrder> undo = new ArrayList<>(voucherOrders);
+                if(status == OrderStatusCache.DUPLICATE){
+                    undo.remove(order);
+                }
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void afterCompletion(int txStatus) {
+                        unpaidOrderExpirer.returnRedisStock(undo);
+                    }
+                });
+                return;
+            }
+        }
+        orderStatusCache.record(voucherOrders, OrderStatusCache.CREATED);
+        unpaidOrderExpirer.schedule(voucherOrders);
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<VoucherOrder> unpaid) {
+        List<VoucherOrder> orders = new ArrayList<>(unpaid.size());
+        //按用户找分表：开启分表前生成的订单id里没有分片号，不能按id路由
+        for (Map.Entry<Integer, List<VoucherOrder>> entry : orderShards.groupByShard(unpaid).entrySet()) {
+            List<Long> orderIds = new ArrayList<>(entry.getValue().size());
+            for (VoucherOrder order : entry.getValue()) {
+                orderIds.add(order.getId());
+            }
+            orders.addAll(orderShards.call(entry.getKey(), () -> cancelUnpaid(orderIds)));
+        }
+        if(orders.isEmpty()){
+            return orders;
+        }
+        Map<Long, Integer> countByVoucher = new LinkedHashMap<>();
+        for (VoucherOrder order : orders) {
+            countByVoucher.merge(order.getVoucherId(), 1, Integer::sum);
+        }
+        //按券归还库存
+        for (Map.Entry<Long, Integer> entry : countByVoucher.entrySet()) {
+            seckillVoucherService.update()
+                    .setSql("stock = stock + " + entry.getValue())
+                    .eq("voucher_id", entry.getKey()).update();
+        }
+        orderStatusCache.record(orders, OrderStatusCache.CANCELED);
+        return orders;
+    }
+
+    //在当前分表内把仍未支付的订单改为已取消，返回被取消的订单
+    private List<VoucherOrder> cancelUnpaid(List<Long> orderIds) {
+        //锁住仍未支付的订单，避免和支付并发
+        List<VoucherOrder> orders = query().select("id", "user_id", "voucher_id")
+                .in("id", orderIds).eq("status", STATUS_UNPAID)
+                .last("for update").list();
+        if(orders.isEmpty()){
+            return orders;
+        }
+        List<Long> ids = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            ids.add(order.getId());
+        }
+        update().set("status", STATUS_CANCELED).in("id", ids).update();
+        return orders;
+    }
+
+    //扣减 k 个库存，库存不够 k 个时扣光剩余库存，返回实际扣减的数量
+    private int deductStock(Long voucherId, int k) {
+        boolean update = seckillVoucherService.update()
+                .setSql("stock = stock - " + k)
+                .eq("voucher_id", voucherId).ge("stock", k).update();
+        if(update){
+            return k;
+        }
+        //正常情况下redis已经拦住了超卖，走到这里说明两边库存不一致
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        int stock = seckillVoucher == null ? 0 : seckillVoucher.getStock();
+        if(stock <= 0){
+            return 0;
+        }
+        update = seckillVoucherService.update()
+                .setSql("stock = stock - " + stock)
+                .eq("voucher_id", voucherId).ge("stock", stock).update();
+        return update ? stock : 0;
     }
 }
@@ -8,12 +8,22 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SegmentStock;
+import com.hmdp.utils.SoldOutRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -32,6 +42,16 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SegmentStock segmentStock;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    //秒杀库存拆分的段数，1表示不拆分
+    @Value("${hmdp.seckill.segments:1}")
+    private Integer segments;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -53,8 +73,58 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        //添加优惠券时将库存放入redis，用以后面redis异步判断和处理
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId()
-                ,seckillVoucher.getStock().toString());
+        //添加优惠券时将库存和活动时间放入redis，用以后面redis异步判断和处理
+        cacheSeckillVouchers(Collections.singletonList(seckillVoucher), Collections.emptyMap());
+    }
+
+    //把秒杀券的库存和起止时间写入一个hash，秒杀时在lua脚本里一起判断，不用再查数据库
+    @Override
+    public void cacheSeckillVouchers(List<SeckillVoucher> seckillVouchers, Map<Long, List<Long>> buyers) {
+        stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                for (SeckillVoucher seckillVoucher : seckillVouchers) {
+                    writeSeckillVoucher(ops, seckillVoucher, buyers.get(seckillVoucher.getVoucherId()));
+                }
+                return null;
+            }
+        });
+        //库存重新写入后清除售罄标记
+        for (SeckillVoucher seckillVoucher : seckillVouchers) {
+            soldOutRegistry.reset(seckillVoucher.getVoucherId());
+        }
+    }
+
+    private void writeSeckillVoucher(RedisOperations<String, String> ops, SeckillVoucher seckillVoucher, List<Long> userIds) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        Integer stock = seckillVoucher.getStock();
+        long begin = toEpochMilli(seckillVoucher.getBeginTime());
+        long end = toEpochMilli(seckillVoucher.getEndTime());
+        //热门券可以把库存拆成多段，分散单key的压力
+        boolean segmented = segments > 1 && stock >= segments;
+        //先写入已购买的用户，再写库存，避免库存可见时一人一单的数据还没就绪
+        if(userIds != null){
+            for (Long userId : userIds) {
+                String orderKey = segmented
+                        ? SegmentStock.orderKey(voucherId, SegmentStock.homeSegment(userId, segments))
+                        : RedisConstants.SECKILL_ORDER_KEY + voucherId;
+                ops.opsForSet().add(orderKey, userId.toString());
+            }
+        }
+        if(segmented){
+            segmentStock.init(ops, voucherId, stock, segments, begin, end);
+        }else{
+            Map<String, String> voucherMap = new HashMap<>(4);
+            voucherMap.put(RedisConstants.SECKILL_STOCK_FIELD, stock.toString());
+            voucherMap.put(RedisConstants.SECKILL_BEGIN_FIELD, String.valueOf(begin));
+            voucherMap.put(RedisConstants.SECKILL_END_FIELD, String.valueOf(end));
+            ops.opsForHash().putAll(RedisConstants.SECKILL_STOCK_KEY + voucherId, voucherMap);
+        }
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 }
@@ -0,0 +1,143 @@
+package com.hmdp.service.job;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.OrderShards;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * 秒杀库存预热：定时扫描即将开始和进行中的秒杀券，redis中不存在的用pipeline一次性加载
+ * 库存、活动时间和已购买用户，保证redis重启或清空后活动开始时缓存已经就绪
+ */
+@Slf4j
+@Component
+public class SeckillStockPrewarmer {
+
+    private static final String LOCK_KEY = "lock:seckill:prewarm";
+    //已取消的订单状态
+    private static final int STATUS_CANCELED = 4;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private OrderShards orderShards;
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Value("${hmdp.seckill.prewarm.enabled:true}")
+    private Boolean enabled;
+
+    //预热未来多少分钟内开始的秒杀券
+    @Value("${hmdp.seckill.prewarm.ahead-minutes:30}")
+    private Long aheadMinutes;
+
+    private volatile long lastCostMillis;
+    private volatile int lastWarmed;
+    private volatile LocalDateTime lastRunTime;
+
+    /**
+     * 启动后立即执行一次，之后定时执行
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.prewarm.interval-ms:60000}")
+    public void prewarm() {
+        if(!enabled){
+            return;
+        }
+        RLock lock = redissonClient.getLock(LOCK_KEY);
+        if(!lock.tryLock()){
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> candidates = seckillVoucherService.query()
+                    .le("begin_time", now.plusMinutes(aheadMinutes))
+                    .gt("end_time", now)
+                    .list();
+            List<SeckillVoucher> missing = filterMissing(candidates);
+            if(!missing.isEmpty()){
+                voucherService.cacheSeckillVouchers(missing, queryBuyers(missing));
+            }
+            lastWarmed = missing.size();
+            lastRunTime = now;
+            lastCostMillis = System.currentTimeMillis() - start;
+            if(!missing.isEmpty()){
+                log.info("预热秒杀券 {} 张，耗时 {} ms", missing.size(), lastCostMillis);
+            }
+        } catch (Exception e) {
+            log.error("秒杀库存预热异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("lastRunTime", lastRunTime);
+        map.put("lastWarmed", lastWarmed);
+        map.put("lastCostMillis", lastCostMillis);
+        return map;
+    }
+
+    //用一个pipeline判断哪些券在redis中不存在
+    private List<SeckillVoucher> filterMissing(List<SeckillVoucher> candidates) {
+        if(candidates.isEmpty()){
+            return candidates;
+        }
+        List<Object> exists = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (SeckillVoucher seckillVoucher : candidates) {
+                byte[] key = (RedisConstants.SECKILL_STOCK_KEY + seckillVoucher.getVoucherId())
+                        .getBytes(StandardCharsets.UTF_8);
+                connection.keyCommands().exists(key);
+            }
+            return null;
+        });
+        List<SeckillVoucher> missing = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            if(!Boolean.TRUE.equals(exists.get(i))){
+                missing.add(candidates.get(i));
+            }
+        }
+        return missing;
+    }
+
+    //已经开始的券可能已有订单，查出有效订单的用户一起加载
+    private Map<Long, List<Long>> queryBuyers(List<SeckillVoucher> seckillVouchers) {
+        Set<Long> voucherIds = seckillVouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toSet());
+        List<VoucherOrder> orders = orderShards.broadcast(() -> voucherOrderService.query().select("user_id", "voucher_id")
+                .in("voucher_id", voucherIds).ne("status", STATUS_CANCELED).list());
+        Map<Long, List<Long>> buyers = new HashMap<>();
+        for (VoucherOrder order : orders) {
+            buyers.computeIfAbsent(order.getVoucherId(), k -> new ArrayList<>()).add(order.getUserId());
+        }
+        return buyers;
+    }
+}
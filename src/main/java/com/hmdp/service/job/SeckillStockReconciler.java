@@ -0,0 +1,330 @@
+package com.hmdp.service.job;
+
+import com.hmdp.dto.SeckillStockDTO;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.dispatcher.OrderDispatcher;
+import com.hmdp.utils.OrderShards;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SegmentStock;
+import com.hmdp.utils.SoldOutRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * redis与mysql秒杀库存对账。每轮只检查一页进行中的秒杀券：
+ * 1. 总量：库存 + 已售 在两边应当相等（在途订单两边同时不变），不等时修正redis库存；
+ * 2. 订单：redis中的购买用户多于库中订单，且该券这一轮没有新订单入库时，找出缺失的用户重新投递；
+ *    库中订单多于redis购买用户时，把库中用户补回redis。
+ * 所有修复都要连续两轮观察到相同的差异才执行，避免把并发中的中间状态当成不一致
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    private static final String LOCK_KEY = "lock:seckill:reconcile";
+    private static final int CHUNK_SIZE = 500;
+    //已取消的订单状态
+    private static final int STATUS_CANCELED = 4;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+    @Resource
+    private OrderDispatcher orderDispatcher;
+    @Resource
+    private OrderShards orderShards;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private SegmentStock segmentStock;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Value("${hmdp.seckill.reconcile.enabled:true}")
+    private Boolean enabled;
+
+    @Value("${hmdp.seckill.reconcile.page-size:50}")
+    private Integer pageSize;
+
+    //活动结束后还继续对账的时间，单位分钟
+    @Value("${hmdp.seckill.reconcile.retention-minutes:60}")
+    private Long retentionMinutes;
+
+    //分页游标
+    private long cursor = 0;
+    //上一轮观察到的差异
+    private final Map<Long, Long> lastStockDelta = new ConcurrentHashMap<>();
+    private final Map<Long, Long> lastOrderCount = new ConcurrentHashMap<>();
+    private final Map<Long, Set<Long>> lastMissingUsers = new ConcurrentHashMap<>();
+    private final Map<Long, Long> lastLostBuyers = new ConcurrentHashMap<>();
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder unloaded = new LongAdder();
+    private final LongAdder stockDrifts = new LongAdder();
+    private final LongAdder stockRepairs = new LongAdder();
+    private final LongAdder ordersReenqueued = new LongAdder();
+    private final LongAdder buyersRestored = new LongAdder();
+    private volatile long lastCostMillis;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval-ms:60000}")
+    public void reconcile() {
+        if(!enabled){
+            return;
+        }
+        //多节点只需要一个节点对账
+        RLock lock = redissonClient.getLock(LOCK_KEY);
+        if(!lock.tryLock()){
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            List<SeckillStockDTO> page = seckillVoucherMapper.queryStockPage(
+                    cursor, LocalDateTime.now().minusMinutes(retentionMinutes), pageSize);
+            cursor = page.size() < pageSize ? 0 : page.get(page.size() - 1).getVoucherId();
+            fillOrderCounts(page);
+            for (SeckillStockDTO dto : page) {
+                try {
+                    reconcile(dto);
+                } catch (Exception e) {
+                    log.error("秒杀券对账异常，voucherId={}", dto.getVoucherId(), e);
+                }
+            }
+            runs.increment();
+        } finally {
+            lastCostMillis = System.currentTimeMillis() - start;
+            lock.unlock();
+        }
+    }
+
+    //在每个分片上统计这一页券的有效订单数并求和，和库存不是同一个快照，差异要连续两轮相同才修复
+    private void fillOrderCounts(List<SeckillStockDTO> page) {
+        if(page.isEmpty()){
+            return;
+        }
+        List<Long> voucherIds = page.stream().map(SeckillStockDTO::getVoucherId).collect(Collectors.toList());
+        Map<Long, Long> counts = new HashMap<>();
+        for (SeckillStockDTO count : orderShards.broadcast(() -> voucherOrderMapper.countByVouchers(voucherIds))) {
+            counts.merge(count.getVoucherId(), count.getOrderCount(), Long::sum);
+        }
+        for (SeckillStockDTO dto : page) {
+            dto.setOrderCount(counts.getOrDefault(dto.getVoucherId(), 0L));
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("runs", runs.sum());
+        map.put("checked", checked.sum());
+        map.put("unloaded", unloaded.sum());
+        map.put("stockDrifts", stockDrifts.sum());
+        map.put("stockRepairs", stockRepairs.sum());
+        map.put("ordersReenqueued", ordersReenqueued.sum());
+        map.put("buyersRestored", buyersRestored.sum());
+        map.put("lastCostMillis", lastCostMillis);
+        return map;
+    }
+
+    private void reconcile(SeckillStockDTO dto) {
+        Long voucherId = dto.getVoucherId();
+        List<Object> fields = stringRedisTemplate.opsForHash().multiGet(RedisConstants.SECKILL_STOCK_KEY + voucherId,
+                Arrays.asList(RedisConstants.SECKILL_STOCK_FIELD, RedisConstants.SECKILL_SEGMENTS_FIELD));
+        if(fields.get(0) == null && fields.get(1) == null){
+            //redis中还没有该券，由预热负责加载
+            unloaded.increment();
+            return;
+        }
+        int segments = fields.get(1) == null ? 0 : Integer.parseInt(fields.get(1).toString());
+        long redisStock = segments == 0 ? Long.parseLong(fields.get(0).toString()) : segmentStock.totalStock(voucherId, segments);
+        long buyers = segments == 0 ? scard(RedisConstants.SECKILL_ORDER_KEY + voucherId) : segmentStock.totalBuyers(voucherId, segments);
+        long dbStock = dto.getStock();
+        long orders = dto.getOrderCount();
+        checked.increment();
+
+        //1.总量对账
+        long delta = (dbStock + orders) - (redisStock + buyers);
+        if(delta != 0){
+            stockDrifts.increment();
+            Long last = lastStockDelta.put(voucherId, delta);
+            if(last != null && last == delta){
+                log.warn("秒杀券库存不一致，修正redis库存，voucherId={}，delta={}", voucherId, delta);
+                adjustStock(voucherId, segments, delta);
+                lastStockDelta.remove(voucherId);
+                stockRepairs.increment();
+            }
+        }else{
+            lastStockDelta.remove(voucherId);
+        }
+
+        //2.订单对账
+        long gap = buyers - orders;
+        if(gap > 0){
+            lastLostBuyers.remove(voucherId);
+            Long lastCount = lastOrderCount.put(voucherId, orders);
+            if(lastCount == null || lastCount != orders){
+                //还在持续入库，差额可能是在途订单
+                lastMissingUsers.remove(voucherId);
+                return;
+            }
+            Set<Long> missing = findMissingUsers(voucherId, segments);
+            Set<Long> last = lastMissingUsers.put(voucherId, missing);
+            if(last != null){
+                Set<Long> confirmed = new HashSet<>(missing);
+                confirmed.retainAll(last);
+                reenqueue(voucherId, confirmed);
+                lastMissingUsers.remove(voucherId);
+            }
+        }else if(gap < 0){
+            clearOrderState(voucherId);
+            Long last = lastLostBuyers.put(voucherId, gap);
+            if(last != null && last == gap){
+                restoreBuyers(voucherId, segments);
+                lastLostBuyers.remove(voucherId);
+            }
+        }else{
+            clearOrderState(voucherId);
+            lastLostBuyers.remove(voucherId);
+        }
+    }
+
+    private void clearOrderState(Long voucherId) {
+        lastOrderCount.remove(voucherId);
+        lastMissingUsers.remove(voucherId);
+    }
+
+    private long scard(String key) {
+        Long size = stringRedisTemplate.opsForSet().size(key);
+        return size == null ? 0 : size;
+    }
+
+    private void adjustStock(Long voucherId, int segments, long delta) {
+        if(segments == 0){
+            stringRedisTemplate.opsForHash().increment(RedisConstants.SECKILL_STOCK_KEY + voucherId,
+                    RedisConstants.SECKILL_STOCK_FIELD, delta);
+        }else{
+            segmentStock.adjustStock(voucherId, segments, delta);
+        }
+        if(delta > 0){
+            soldOutRegistry.reset(voucherId);
+        }
+    }
+
+    //redis中下过单但库里没有订单的用户
+    private Set<Long> findMissingUsers(Long voucherId, int segments) {
+        Set<Long> missing = new HashSet<>();
+        if(segments == 0){
+            scanMissing(voucherId, RedisConstants.SECKILL_ORDER_KEY + voucherId, missing);
+        }else{
+            for (int i = 0; i < segments; i++) {
+                scanMissing(voucherId, SegmentStock.orderKey(voucherId, i), missing);
+            }
+        }
+        return missing;
+    }
+
+    private void scanMissing(Long voucherId, String orderKey, Set<Long> missing) {
+        ScanOptions options = ScanOptions.scanOptions().count(CHUNK_SIZE).build();
+        try (Cursor<String> members = stringRedisTemplate.opsForSet().scan(orderKey, options)) {
+            List<Long> chunk = new ArrayList<>(CHUNK_SIZE);
+            while (members.hasNext()) {
+                chunk.add(Long.valueOf(members.next()));
+                if(chunk.size() >= CHUNK_SIZE){
+                    collectMissing(voucherId, chunk, missing);
+                    chunk.clear();
+                }
+            }
+            if(!chunk.isEmpty()){
+                collectMissing(voucherId, chunk, missing);
+            }
+        }
+    }
+
+    private void collectMissing(Long voucherId, List<Long> userIds, Set<Long> missing) {
+        Set<Long> chunk = new HashSet<>(userIds);
+        for (Map.Entry<Integer, List<Long>> entry : orderShards.groupUsersByShard(userIds).entrySet()) {
+            List<VoucherOrder> exists = orderShards.call(entry.getKey(), () -> voucherOrderService.query().select("user_id")
+                    .eq("voucher_id", voucherId).ne("status", STATUS_CANCELED).in("user_id", entry.getValue()).list());
+            for (VoucherOrder order : exists) {
+                chunk.remove(order.getUserId());
+            }
+        }
+        missing.addAll(chunk);
+    }
+
+    private void reenqueue(Long voucherId, Set<Long> userIds) {
+        if(userIds.isEmpty()){
+            return;
+        }
+        log.warn("秒杀订单丢失，重新投递，voucherId={}，条数：{}", voucherId, userIds.size());
+        for (Long userId : userIds) {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(orderShards.nextOrderId(userId));
+            voucherOrder.setUserId(userId);
+            voucherOrder.setVoucherId(voucherId);
+            orderDispatcher.dispatch(voucherOrder);
+        }
+        ordersReenqueued.add(userIds.size());
+    }
+
+    //把库中有效订单的用户补回redis，sadd是幂等的，不需要先求差集
+    private void restoreBuyers(Long voucherId, int segments) {
+        log.warn("redis中一人一单数据丢失，从库中恢复，voucherId={}", voucherId);
+        //分表后逐个分表恢复
+        for (int shard = 0; shard < orderShards.getCount(); shard++) {
+            restoreBuyers(voucherId, segments, shard);
+        }
+    }
+
+    private void restoreBuyers(Long voucherId, int segments, int shard) {
+        long lastUserId = 0;
+        while (true) {
+            long from = lastUserId;
+            List<VoucherOrder> orders = orderShards.call(shard, () -> voucherOrderService.query().select("user_id")
+                    .eq("voucher_id", voucherId).ne("status", STATUS_CANCELED).gt("user_id", from)
+                    .orderByAsc("user_id").last("LIMIT " + CHUNK_SIZE).list());
+            if(orders.isEmpty()){
+                return;
+            }
+            Map<String, List<String>> byKey = new LinkedHashMap<>();
+            for (VoucherOrder order : orders) {
+                String orderKey = segments == 0 ? RedisConstants.SECKILL_ORDER_KEY + voucherId
+                        : SegmentStock.orderKey(voucherId, SegmentStock.homeSegment(order.getUserId(), segments));
+                byKey.computeIfAbsent(orderKey, k -> new ArrayList<>()).add(order.getUserId().toString());
+            }
+            for (Map.Entry<String, List<String>> entry : byKey.entrySet()) {
+                Long added = stringRedisTemplate.opsForSet().add(entry.getKey(), entry.getValue().toArray(new String[0]));
+                buyersRestored.add(added == null ? 0 : added);
+            }
+            lastUserId = orders.get(orders.size() - 1).getUserId();
+        }
+    }
+}
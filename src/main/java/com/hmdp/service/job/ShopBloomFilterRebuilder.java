@@ -0,0 +1,44 @@
+package com.hmdp.service.job;
+
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 店铺布隆过滤器重建：redis中还没有、删除的店铺占比过高、或扩容层数过多时，分页加载全部店铺id重建。
+ * 启动后立即检查一次，所以启动时不需要同步加载全表
+ */
+@Slf4j
+@Component
+public class ShopBloomFilterRebuilder {
+
+    @Resource
+    private IShopService shopService;
+
+    //已删除的店铺超过插入数的这个比例时重建
+    @Value("${hmdp.bloom.shop.max-deleted-ratio:0.2}")
+    private Double maxDeletedRatio;
+    //层数超过后重建成一层，减少每次判断访问的过滤器个数
+    @Value("${hmdp.bloom.shop.max-layers:4}")
+    private Integer maxLayers;
+
+    @Scheduled(fixedDelayString = "${hmdp.bloom.shop.check-interval-ms:600000}")
+    public void rebuildIfNeeded() {
+        try {
+            if(!shopService.getBloomFilter().needsRebuild(maxDeletedRatio, maxLayers)){
+                return;
+            }
+            long start = System.currentTimeMillis();
+            long loaded = shopService.rebuildBloomFilter();
+            if(loaded >= 0){
+                log.info("店铺布隆过滤器重建完成，加载 {} 个店铺，耗时 {} ms", loaded, System.currentTimeMillis() - start);
+            }
+        } catch (Exception e) {
+            log.error("店铺布隆过滤器重建异常", e);
+        }
+    }
+}
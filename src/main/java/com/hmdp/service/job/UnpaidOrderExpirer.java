@@ -0,0 +1,333 @@
+package com.hmdp.service.job;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.SegmentStock;
+import com.hmdp.utils.SoldOutRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 超时未支付订单的自动取消。
+ * 订单入库提交后写入 order:expire（ZSET，score为到期时间，member为 订单id:券id:用户id），
+ * 同时放进本节点的时间轮；到期时用lua把score改成租约到期时间来认领，认领到的节点负责取消：
+ * 数据库里把未支付订单改为已取消并归还库存，再用lua归还redis库存、移出购买用户，最后才ZREM。
+ * 节点宕机时时间轮里的订单会丢，认领后没处理完的订单租约到期后仍在ZSET中，都由定时扫描过期超过宽限时间的订单兜底
+ */
+@Slf4j
+@Component
+public class UnpaidOrderExpirer {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisScripts redisScripts;
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SegmentStock segmentStock;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Value("${hmdp.order.expire.enabled:true}")
+    private Boolean enabled;
+    //未支付订单的保留时间，单位分钟
+    @Value("${hmdp.order.expire.unpaid-minutes:15}")
+    private Long unpaidMinutes;
+    @Value("${hmdp.order.expire.batch-size:100}")
+    private Integer batchSize;
+    //时间轮的槽数和每格时长
+    @Value("${hmdp.order.expire.wheel-size:1024}")
+    private Integer wheelSize;
+    @Value("${hmdp.order.expire.tick-ms:1000}")
+    private Long tickMs;
+    //过期超过这个时间还在ZSET里的订单，说明负责的节点没处理，由扫描兜底，单位毫秒
+    @Value("${hmdp.order.expire.grace-ms:30000}")
+    private Long graceMs;
+    //认领后取消的最长处理时间，超过后其他节点可以重新认领，单位毫秒
+    @Value("${hmdp.order.expire.lease-ms:60000}")
+    private Long leaseMs;
+
+    private Queue<Entry>[] wheel;
+    private long lastTick;
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "order-expire-wheel");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder claimed = new LongAdder();
+    private final LongAdder canceled = new LongAdder();
+    private final LongAdder recovered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    @PostConstruct
+    @SuppressWarnings("unchecked")
+    public void init() {
+        if(!enabled){
+            return;
+        }
+        wheel = new Queue[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        lastTick = System.currentTimeMillis() / tickMs;
+        ticker.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        ticker.shutdownNow();
+    }
+
+    /**
+     * 订单入库后登记到期时间，在事务中调用时等提交后再登记
+     */
+    public void schedule(Collection<VoucherOrder> orders) {
+        if(!enabled || orders.isEmpty()){
+            return;
+        }
+        List<VoucherOrder> copy = new ArrayList<>(orders);
+        if(!TransactionSynchronizationManager.isSynchronizationActive()){
+            add(copy);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                add(copy);
+            }
+        });
+    }
+
+    private void add(List<VoucherOrder> orders) {
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(unpaidMinutes);
+        List<String> members = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            members.add(order.getId() + ":" + order.getVoucherId() + ":" + order.getUserId());
+        }
+        try {
+            stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public <K, V> Object execute(RedisOperations<K, V> operations) {
+                    RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                    for (String member : members) {
+                        ops.opsForZSet().add(RedisConstants.ORDER_EXPIRE_KEY, member, deadline);
+                    }
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            //订单已经入库，登记失败只是不会自动取消，留给人工处理
+            log.error("登记订单到期时间失败，订单：{}", members, e);
+            return;
+        }
+        Queue<Entry> slot = wheel[(int) ((deadline / tickMs) % wheelSize)];
+        for (String member : members) {
+            slot.offer(new Entry(member, deadline));
+        }
+        scheduled.add(members.size());
+    }
+
+    //每格执行一次，把走过的槽里到期的订单分批取消
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            long currentTick = now / tickMs;
+            List<String> due = new ArrayList<>();
+            //线程被耽搁时补走落下的格子，最多走一圈
+            for (long t = Math.max(lastTick + 1, currentTick - wheelSize + 1); t <= currentTick; t++) {
+                Iterator<Entry> it = wheel[(int) (t % wheelSize)].iterator();
+                while (it.hasNext()) {
+                    Entry entry = it.next();
+                    //槽里还有下几圈才到期的订单
+                    if(entry.deadline <= now){
+                        due.add(entry.member);
+                        it.remove();
+                    }
+                }
+            }
+            lastTick = currentTick;
+            for (int i = 0; i < due.size(); i += batchSize) {
+                expire(claim(due.subList(i, Math.min(i + batchSize, due.size()))));
+            }
+        } catch (Exception e) {
+            log.error("处理到期订单异常", e);
+        }
+    }
+
+    /**
+     * 兜底扫描：处理其他节点没处理掉的到期订单
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.expire.recover-interval-ms:30000}")
+    public void recover() {
+        if(!enabled){
+            return;
+        }
+        try {
+            long max = System.currentTimeMillis() - graceMs;
+            while (true) {
+                Set<String> members = stringRedisTemplate.opsForZSet()
+                        .rangeByScore(RedisConstants.ORDER_EXPIRE_KEY, 0, max, 0, batchSize);
+                if(members == null || members.isEmpty()){
+                    return;
+                }
+                List<String> owned = claim(new ArrayList<>(members));
+                recovered.add(owned.size());
+                expire(owned);
+                if(members.size() < batchSize){
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("扫描到期订单异常", e);
+        }
+    }
+
+    //把到期的成员的score改成租约到期时间，返回由本节点处理的成员；其他节点已认领或已处理完的不返回
+    private List<String> claim(List<String> members) {
+        long now = System.currentTimeMillis();
+        Object[] args = new Object[members.size() + 2];
+        args[0] = String.valueOf(now);
+        args[1] = String.valueOf(now + leaseMs);
+        for (int i = 0; i < members.size(); i++) {
+            args[i + 2] = members.get(i);
+        }
+        @SuppressWarnings("unchecked")
+        List<String> owned = redisScripts.execute(RedisScripts.ORDER_EXPIRE_CLAIM,
+                Collections.singletonList(RedisConstants.ORDER_EXPIRE_KEY), args);
+        if(owned == null){
+            return Collections.emptyList();
+        }
+        claimed.add(owned.size());
+        return owned;
+    }
+
+    private void expire(List<String> members) {
+        if(members.isEmpty()){
+            return;
+        }
+        List<VoucherOrder> unpaid = new ArrayList<>(members.size());
+        for (String member : members) {
+            //订单id:券id:用户id
+            String[] parts = member.split(":");
+            VoucherOrder order = new VoucherOrder();
+            order.setId(Long.valueOf(parts[0]));
+            order.setVoucherId(Long.valueOf(parts[1]));
+            order.setUserId(Long.valueOf(parts[2]));
+            unpaid.add(order);
+        }
+        List<VoucherOrder> orders;
+        try {
+            orders = voucherOrderService.cancelUnpaidOrders(unpaid);
+        } catch (Exception e) {
+            //成员还在ZSET里，score改成已过宽限时间，下次扫描就重试，不必等租约到期
+            log.error("取消未支付订单失败，稍后重试，条数：{}", members.size(), e);
+            failed.add(members.size());
+            long retryAt = System.currentTimeMillis() - graceMs;
+            for (String member : members) {
+                stringRedisTemplate.opsForZSet().add(RedisConstants.ORDER_EXPIRE_KEY, member, retryAt);
+            }
+            return;
+        }
+        canceled.add(orders.size());
+        //数据库已提交，归还redis库存
+        returnRedisStock(orders);
+        //全部处理完才移出ZSET，之前宕机的话租约到期后重新认领，已取消的订单不会再取消一次
+        stringRedisTemplate.opsForZSet().remove(RedisConstants.ORDER_EXPIRE_KEY, members.toArray());
+        if(!orders.isEmpty()){
+            log.info("取消超时未支付订单 {} 条", orders.size());
+        }
+    }
+
+    /**
+     * 归还订单占用的redis库存并移出购买用户，用户已不在购买集合中的订单跳过
+     */
+    public void returnRedisStock(Collection<VoucherOrder> orders) {
+        Set<Long> vouchers = new HashSet<>();
+        for (VoucherOrder order : orders) {
+            Long voucherId = order.getVoucherId();
+            Integer segments = segmentStock.getSegments(voucherId);
+            if(segments == null){
+                segments = segmentStock.loadSegments(voucherId);
+            }
+            List<String> keys;
+            if(segments == null){
+                keys = Arrays.asList(RedisConstants.SECKILL_STOCK_KEY + voucherId,
+                        RedisConstants.SECKILL_ORDER_KEY + voucherId);
+            }else{
+                int home = SegmentStock.homeSegment(order.getUserId(), segments);
+                keys = Arrays.asList(SegmentStock.stockKey(voucherId, home), SegmentStock.orderKey(voucherId, home));
+            }
+            redisScripts.execute(RedisScripts.SECKILL_CANCEL, keys, order.getUserId().toString());
+            vouchers.add(voucherId);
+        }
+        //库存回来了，清掉各节点的售罄标记
+        for (Long voucherId : vouchers) {
+            soldOutRegistry.reset(voucherId);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("scheduled", scheduled.sum());
+        stats.put("claimed", claimed.sum());
+        stats.put("canceled", canceled.sum());
+        stats.put("recovered", recovered.sum());
+        stats.put("failed", failed.sum());
+        int pending = 0;
+        if(wheel != null){
+            for (Queue<Entry> slot : wheel) {
+                pending += slot.size();
+            }
+        }
+        stats.put("wheelPending", pending);
+        Long backlog = stringRedisTemplate.opsForZSet().zCard(RedisConstants.ORDER_EXPIRE_KEY);
+        stats.put("backlog", backlog);
+        return stats;
+    }
+
+    private static class Entry {
+        private final String member;
+        private final long deadline;
+
+        Entry(String member, long deadline) {
+            this.member = member;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.hmdp.service.receiver;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.MqConst;
+import com.rabbitmq.client.Channel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.annotation.Argument;
+import org.springframework.amqp.rabbit.annotation.Exchange;
+import org.springframework.amqp.rabbit.annotation.Queue;
+import org.springframework.amqp.rabbit.annotation.QueueBinding;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 批量消费秒杀订单，开启 hmdp.order.batch.enabled 后替代 {@link OrderReceiver}。
+ * 整批失败时逐条重试，一条坏消息只影响它自己：重投后仍失败的转入死信队列 {@link MqConst#ORDER_DLX_QUEUE}
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.order.batch", name = "enabled", havingValue = "true")
+public class BatchOrderReceiver {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    @RabbitListener(bindings = @QueueBinding(
+            value =@Queue(value = MqConst.ORDER_QUEUE, arguments =
+                @Argument(name = "x-dead-letter-exchange", value = MqConst.ORDER_DLX_EXCHANGE)),
+            exchange = @Exchange(value = MqConst.ORDER_EXCHANGE),
+            key = {MqConst.ORDER_ROUTINGKEY}
+    ), containerFactory = MqConst.ORDER_BATCH_CONTAINER_FACTORY)
+    public void orderBatchHandler(List<Message> messages, Channel channel) throws IOException {
+        if(messages.isEmpty()){
+            return;
+        }
+        //同一个channel上的deliveryTag是递增的，用最后一条的tag加multiple即可对整批ack
+        long lastTag = messages.get(messages.size() - 1).getMessageProperties().getDeliveryTag();
+        long start = System.currentTimeMillis();
+        try {
+            List<VoucherOrder> orders = new ArrayList<>(messages.size());
+            for (Message message : messages) {
+                Object payload = rabbitTemplate.getMessageConverter().fromMessage(message);
+                if(payload instanceof List){
+                    //组合订单单独一个事务，整批失败逐条重试时已入库的订单按id识别
+                    @SuppressWarnings("unchecked")
+                    List<VoucherOrder> bundle = (List<VoucherOrder>) payload;
+                    voucherOrderService.createVoucherOrderBundle(bundle);
+                    continue;
+                }
+                orders.add((VoucherOrder) payload);
+            }
+            int saved = orders.isEmpty() ? 0 : voucherOrderService.createVoucherOrders(orders);
+            channel.basicAck(lastTag, true);
+            long cost = System.currentTimeMillis() - start;
+            log.debug("批量下单：收到 {} 条，入库 {} 条，耗时 {} ms", messages.size(), saved, cost);
+        } catch (Exception e) {
+            //整批已回滚，逐条重试找出出错的消息，其余消息照常入库
+            log.error("批量下单失败，逐条重试，条数：{}", messages.size(), e);
+            for (Message message : messages) {
+                handleOne(message, channel);
+            }
+        }
+    }
+
+    //单条处理；失败时第一次重新入队，重投后仍失败的转入死信队列，不再阻塞后面的消息
+    private void handleOne(Message message, Channel channel) throws IOException {
+        long tag = message.getMessageProperties().getDeliveryTag();
+        try {
+            Object payload = rabbitTemplate.getMessageConverter().fromMessage(message);
+            if(payload instanceof List){
+                @SuppressWarnings("unchecked")
+                List<VoucherOrder> bundle = (List<VoucherOrder>) payload;
+                voucherOrderService.createVoucherOrderBundle(bundle);
+            }else{
+                voucherOrderService.createVoucherOrders(Collections.singletonList((VoucherOrder) payload));
+            }
+            channel.basicAck(tag, false);
+        } catch (Exception e) {
+            boolean requeue = !Boolean.TRUE.equals(message.getMessageProperties().getRedelivered());
+            log.error("订单消息处理失败，{}：{}", requeue ? "重新入队" : "转入死信队列", message, e);
+            channel.basicNack(tag, false, requeue);
+        }
+    }
+}
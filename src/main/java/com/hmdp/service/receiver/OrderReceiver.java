@@ -4,27 +4,40 @@ import com.hmdp.entity.VoucherOrder;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.utils.MqConst;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.annotation.Argument;
 import org.springframework.amqp.rabbit.annotation.Exchange;
 import org.springframework.amqp.rabbit.annotation.Queue;
 import org.springframework.amqp.rabbit.annotation.QueueBinding;
+import org.springframework.amqp.rabbit.annotation.RabbitHandler;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 @Slf4j
 @Component
+@ConditionalOnProperty(prefix = "hmdp.order.batch", name = "enabled", havingValue = "false", matchIfMissing = true)
+@RabbitListener(bindings = @QueueBinding(
+        value =@Queue(value = MqConst.ORDER_QUEUE, arguments =
+                @Argument(name = "x-dead-letter-exchange", value = MqConst.ORDER_DLX_EXCHANGE)),
+        exchange = @Exchange(value = MqConst.ORDER_EXCHANGE),
+        key = {MqConst.ORDER_ROUTINGKEY}
+))
 public class OrderReceiver {
 
     @Resource
     private IVoucherOrderService voucherOrderService;
 
-    @RabbitListener(bindings = @QueueBinding(
-            value =@Queue(value = MqConst.ORDER_QUEUE),
-            exchange = @Exchange(value = MqConst.ORDER_EXCHANGE),
-            key = {MqConst.ORDER_ROUTINGKEY}
-    ))
+    @RabbitHandler
     public void orderHandler(VoucherOrder voucherOrder){
         voucherOrderService.createVoucherOrder(voucherOrder);
     }
+
+    //组合秒杀的一组订单
+    @RabbitHandler
+    public void bundleHandler(List<VoucherOrder> voucherOrders){
+        voucherOrderService.createVoucherOrderBundle(voucherOrders);
+    }
 }
@@ -0,0 +1,337 @@
+package com.hmdp.utils;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制编码，按类的字段结构直接读写字段，不经过json中间对象。
+ * 格式：魔数(1) + 版本(1) + 逻辑过期时间(8) + 类结构哈希(4) + 空值位图 + 按字段名排序的各非空字段。
+ * 整数用zigzag变长编码，字符串为长度 + UTF-8字节。类的字段变了哈希就对不上，解码返回null当作缓存不存在；
+ * 不是这个格式的数据（升级前写入的json）交给json编码解析
+ */
+@Component
+@ConditionalOnProperty(name = "hmdp.cache.codec", havingValue = "binary")
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte MAGIC = (byte) 0xB1;
+    private static final byte VERSION = 1;
+    private static final int EXPIRE_OFFSET = 2;
+    private static final int HASH_OFFSET = 10;
+    private static final int HEADER_SIZE = 14;
+
+    private static final Map<Class<?>, FieldCodec> CODECS = new HashMap<>();
+
+    static {
+        FieldCodec longCodec = new FieldCodec((w, v) -> w.writeVarLong((Long) v), Reader::readVarLong);
+        CODECS.put(Long.class, longCodec);
+        CODECS.put(long.class, longCodec);
+        FieldCodec intCodec = new FieldCodec((w, v) -> w.writeVarLong((Integer) v), r -> (int) r.readVarLong());
+        CODECS.put(Integer.class, intCodec);
+        CODECS.put(int.class, intCodec);
+        FieldCodec shortCodec = new FieldCodec((w, v) -> w.writeVarLong((Short) v), r -> (short) r.readVarLong());
+        CODECS.put(Short.class, shortCodec);
+        CODECS.put(short.class, shortCodec);
+        FieldCodec byteCodec = new FieldCodec((w, v) -> w.writeByte((Byte) v), Reader::readByte);
+        CODECS.put(Byte.class, byteCodec);
+        CODECS.put(byte.class, byteCodec);
+        FieldCodec booleanCodec = new FieldCodec((w, v) -> w.writeByte((Boolean) v ? 1 : 0), r -> r.readByte() != 0);
+        CODECS.put(Boolean.class, booleanCodec);
+        CODECS.put(boolean.class, booleanCodec);
+        FieldCodec doubleCodec = new FieldCodec((w, v) -> w.writeLong(Double.doubleToRawLongBits((Double) v)),
+                r -> Double.longBitsToDouble(r.readLong()));
+        CODECS.put(Double.class, doubleCodec);
+        CODECS.put(double.class, doubleCodec);
+        FieldCodec floatCodec = new FieldCodec((w, v) -> w.writeInt(Float.floatToRawIntBits((Float) v)),
+                r -> Float.intBitsToFloat(r.readInt()));
+        CODECS.put(Float.class, floatCodec);
+        CODECS.put(float.class, floatCodec);
+        CODECS.put(String.class, new FieldCodec((w, v) -> w.writeString((String) v), Reader::readString));
+        CODECS.put(BigDecimal.class, new FieldCodec((w, v) -> w.writeString(v.toString()), r -> new BigDecimal(r.readString())));
+        CODECS.put(LocalDate.class, new FieldCodec((w, v) -> w.writeVarLong(((LocalDate) v).toEpochDay()),
+                r -> LocalDate.ofEpochDay(r.readVarLong())));
+        CODECS.put(LocalDateTime.class, new FieldCodec((w, v) -> {
+            LocalDateTime time = (LocalDateTime) v;
+            w.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+            w.writeVarLong(time.getNano());
+        }, r -> LocalDateTime.ofEpochSecond(r.readVarLong(), (int) r.readVarLong(), ZoneOffset.UTC)));
+    }
+
+    private final JsonCacheCodec json = new JsonCacheCodec();
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] encode(Object value, long expireAt) {
+        Schema schema = schemas.computeIfAbsent(value.getClass(), Schema::new);
+        Writer w = new Writer(128);
+        w.writeByte(MAGIC);
+        w.writeByte(VERSION);
+        w.writeLong(expireAt);
+        w.writeInt(schema.hash);
+        schema.write(value, w);
+        return w.toByteArray();
+    }
+
+    @Override
+    public long expireAt(byte[] bytes) {
+        if(!isBinary(bytes)){
+            return json.expireAt(bytes);
+        }
+        return new Reader(bytes, EXPIRE_OFFSET).readLong();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if(!isBinary(bytes)){
+            return json.decode(bytes, type);
+        }
+        Schema schema = schemas.computeIfAbsent(type, Schema::new);
+        if(new Reader(bytes, HASH_OFFSET).readInt() != schema.hash){
+            return null;
+        }
+        return type.cast(schema.read(new Reader(bytes, HEADER_SIZE)));
+    }
+
+    private static boolean isBinary(byte[] bytes) {
+        return bytes.length >= HEADER_SIZE && bytes[0] == MAGIC && bytes[1] == VERSION;
+    }
+
+    /**
+     * 一个类的字段结构：非静态、非transient字段按名字排序
+     */
+    private static class Schema {
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final FieldCodec[] codecs;
+        private final int nullBytes;
+        private final int hash;
+
+        Schema(Class<?> type) {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if(!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)){
+                        list.add(field);
+                    }
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            fields = list.toArray(new Field[0]);
+            codecs = new FieldCodec[fields.length];
+            StringBuilder signature = new StringBuilder(type.getName());
+            for (int i = 0; i < fields.length; i++) {
+                codecs[i] = CODECS.get(fields[i].getType());
+                if(codecs[i] == null){
+                    throw new IllegalArgumentException("二进制缓存编码不支持的字段类型："
+                            + type.getName() + "." + fields[i].getName() + "，请改用json编码");
+                }
+                fields[i].setAccessible(true);
+                signature.append(';').append(fields[i].getName()).append(':').append(fields[i].getType().getName());
+            }
+            nullBytes = (fields.length + 7) / 8;
+            hash = signature.toString().hashCode();
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("二进制缓存编码需要无参构造方法：" + type.getName(), e);
+            }
+        }
+
+        void write(Object value, Writer w) {
+            int bitmap = w.reserve(nullBytes);
+            try {
+                for (int i = 0; i < fields.length; i++) {
+                    Object v = fields[i].get(value);
+                    if(v == null){
+                        w.setBit(bitmap, i);
+                    }else{
+                        codecs[i].writer.write(w, v);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Object read(Reader r) {
+            int bitmap = r.skip(nullBytes);
+            try {
+                Object value = constructor.newInstance();
+                for (int i = 0; i < fields.length; i++) {
+                    if(!r.isBitSet(bitmap, i)){
+                        fields[i].set(value, codecs[i].reader.read(r));
+                    }
+                }
+                return value;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static class FieldCodec {
+        private final ValueWriter writer;
+        private final ValueReader reader;
+
+        FieldCodec(ValueWriter writer, ValueReader reader) {
+            this.writer = writer;
+            this.reader = reader;
+        }
+    }
+
+    private interface ValueWriter {
+        void write(Writer w, Object value);
+    }
+
+    private interface ValueReader {
+        Object read(Reader r);
+    }
+
+    private static class Writer {
+        private byte[] buf;
+        private int pos;
+
+        Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        private void ensure(int n) {
+            if(pos + n > buf.length){
+                byte[] bigger = new byte[Math.max(buf.length * 2, pos + n)];
+                System.arraycopy(buf, 0, bigger, 0, pos);
+                buf = bigger;
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (v >>> shift);
+            }
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (v >>> shift);
+            }
+        }
+
+        //zigzag后按7位一组写出，小的正负数都只占1~2字节
+        void writeVarLong(long v) {
+            long zigzag = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((zigzag & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buf[pos++] = (byte) zigzag;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        //预留 n 个字节并清零，返回起始位置
+        int reserve(int n) {
+            ensure(n);
+            int start = pos;
+            pos += n;
+            return start;
+        }
+
+        void setBit(int start, int i) {
+            buf[start + (i >>> 3)] |= (byte) (1 << (i & 7));
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = new byte[pos];
+            System.arraycopy(buf, 0, bytes, 0, pos);
+            return bytes;
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        Reader(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        byte readByte() {
+            return buf[pos++];
+        }
+
+        int readInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readVarLong() {
+            long zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                zigzag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        int skip(int n) {
+            int start = pos;
+            pos += n;
+            return start;
+        }
+
+        boolean isBitSet(int start, int i) {
+            return (buf[start + (i >>> 3)] & (1 << (i & 7))) != 0;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.hmdp.utils;
 
 import org.redisson.api.RBloomFilter;
 import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
@@ -11,6 +12,10 @@ public class BloomFilterUtil {
 
     @Resource
     private RedissonClient redissonClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisScripts redisScripts;
 
     /**
      * 创建布隆过滤器
@@ -24,5 +29,16 @@ public class BloomFilterUtil {
         bloomFilter.tryInit(expectedInsertions, falsePositiveRate);
         return bloomFilter;
     }
-}
 
+    /**
+     * 创建可扩容的布隆过滤器，数据量超过预测值时自动加层，误判率不变
+     *
+     * @param filterName         过滤器名称
+     * @param expectedInsertions 第一层的最小容量
+     * @param falsePositiveRate  总误判率
+     */
+    public <T> ScalableBloomFilter<T> createScalable(String filterName, long expectedInsertions, double falsePositiveRate) {
+        return new ScalableBloomFilter<>(redissonClient, stringRedisTemplate, redisScripts,
+                filterName, expectedInsertions, falsePositiveRate);
+    }
+}
@@ -1,155 +1,953 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RBloomFilter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
+/**
+ * 缓存工具。配置了本地缓存的key前缀在redis前面再加一层进程内缓存（Caffeine，按容量和写入时间淘汰），
+ * 本地缓存保存反序列化后的对象，命中时既不访问redis也不解析json；调用方不要修改返回的对象。
+ * 缓存重建和删除时通过redis发布订阅通知所有节点丢弃本地副本，漏收通知时最多读到 ttl-seconds 的旧数据。
+ * 缓存未命中和逻辑过期重建按key合并：同一节点同一个key只有一个线程去抢redis锁和查库，其余线程等待它的结果。
+ * redis中的值由 CacheCodec 编码，逻辑过期时间可以不解析数据直接读出。
+ * 列表页用 queryBatch 一次查一批id，redis和数据库的往返次数与id个数无关。
+ * 开启热点探测时，query 按本节点统计的访问热度在TTL和逻辑过期两种方式间自动切换，热点key常驻本地缓存。
+ * 用 refreshAhead 登记过批量加载方式的key前缀，本节点读过的逻辑过期key在快到期时由后台按批量查库提前刷新，
+ * 每秒刷新数有上限；一段时间没被读过的key不再刷新
+ */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
 
     private final StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private CacheCodec cacheCodec;
+    @Resource
+    private RedisScripts redisScripts;
+
+    //开启本地缓存的key前缀，逗号分隔
+    @Value("${hmdp.cache.local.prefixes:}")
+    private String[] localPrefixes;
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private Long localMaximumSize;
+    @Value("${hmdp.cache.local.ttl-seconds:10}")
+    private Long localTtlSeconds;
+
+    //key前缀 -> 本地缓存
+    private final Map<String, Cache<String, LocalValue>> localCaches = new ConcurrentHashMap<>();
+    //key前缀 -> 命中统计
+    private final Map<String, CacheStats> stats = new ConcurrentHashMap<>();
+
+    //等待同一个key的加载结果的最长时间，单位毫秒
+    @Value("${hmdp.cache.single-flight.wait-ms:3000}")
+    private Long singleFlightWaitMs;
+    //其他节点持有重建锁时，检查缓存是否已写入的间隔
+    private static final long LOCK_RETRY_MS = 50;
+    //缓存key -> 本节点正在进行的加载
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    //本节点正在逻辑过期重建的缓存key
+    private final Set<String> rebuilding = ConcurrentHashMap.newKeySet();
+
+    //热点探测
+    @Value("${hmdp.cache.hot-key.enabled:true}")
+    private Boolean hotKeyEnabled;
+    //窗口内访问次数达到多少算热点，窗口长度为 slot-ms * slots
+    @Value("${hmdp.cache.hot-key.threshold:200}")
+    private Long hotKeyThreshold;
+    @Value("${hmdp.cache.hot-key.slots:6}")
+    private Integer hotKeySlots;
+    @Value("${hmdp.cache.hot-key.max-keys:1000}")
+    private Integer hotKeyMaxKeys;
+    //关闭热点探测时为null
+    private HotKeyDetector hotKeyDetector;
+    //热点key的本地副本，不按容量和时间淘汰，降级或收到失效通知时丢弃
+    private final Map<String, LocalValue> pinned = new ConcurrentHashMap<>();
+
+    //逻辑过期的值在redis中的实际过期时间 = 逻辑过期时长 + 宽限时间，没人重建的key最终会被删除
+    @Value("${hmdp.cache.logical-expire.grace-seconds:300}")
+    private Long logicalGraceSeconds;
+
     public CacheClient(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    //读到逻辑过期数据时的重建任务，队列有界，满了就跳过这次重建继续返回旧数据
+    private static final ExecutorService CACHE_REBUILD_EXECUTOR = new ThreadPoolExecutor(10, 10,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1000));
+
+    @Value("${hmdp.cache.refresh-ahead.enabled:true}")
+    private Boolean refreshAheadEnabled;
+    @Value("${hmdp.cache.refresh-ahead.interval-ms:1000}")
+    private Long refreshIntervalMs;
+    //距逻辑过期还剩多久时提前刷新，单位毫秒
+    @Value("${hmdp.cache.refresh-ahead.ahead-ms:5000}")
+    private Long refreshAheadMs;
+    //多久没被读过的key不再刷新，单位毫秒
+    @Value("${hmdp.cache.refresh-ahead.idle-ms:60000}")
+    private Long refreshIdleMs;
+    //每秒最多刷新的key数，超出的留到下一轮，越早过期的越先刷新
+    @Value("${hmdp.cache.refresh-ahead.max-per-second:200}")
+    private Integer refreshMaxPerSecond;
+    //一次批量查库的key数
+    @Value("${hmdp.cache.refresh-ahead.batch-size:100}")
+    private Integer refreshBatchSize;
+    //最多跟踪的key数，超出后新读到的key只在读时重建
+    @Value("${hmdp.cache.refresh-ahead.max-keys:100000}")
+    private Integer refreshMaxKeys;
+    //key前缀 -> 提前刷新用的批量加载方式
+    private final Map<String, RefreshLoader> refreshLoaders = new ConcurrentHashMap<>();
+    //缓存key -> 逻辑过期时间和最后读取时间
+    private final Map<String, Tracked> tracked = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cache-refresh-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @PostConstruct
+    public void init() {
+        for (String prefix : localPrefixes) {
+            if(StrUtil.isBlank(prefix)){
+                continue;
+            }
+            localCaches.put(prefix.trim(), Caffeine.newBuilder()
+                    .maximumSize(localMaximumSize)
+                    .expireAfterWrite(localTtlSeconds, TimeUnit.SECONDS)
+                    .build());
+        }
+        if(hotKeyEnabled){
+            hotKeyDetector = new HotKeyDetector(hotKeySlots, 4, 2048, hotKeyThreshold, hotKeyMaxKeys);
+        }
+        if(!localCaches.isEmpty() || hotKeyDetector != null){
+            redisMessageListenerContainer.addMessageListener(this,
+                    new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+            log.info("开启本地缓存的key前缀：{}", localCaches.keySet());
+        }
+        if(refreshAheadEnabled){
+            refresher.scheduleWithFixedDelay(this::refreshDue, refreshIntervalMs, refreshIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * 登记一个key前缀的批量加载方式，之后本节点通过逻辑过期读到的这个前缀的key会在快到期时提前刷新
+     * @param batchDbCallback 按一批id查库，返回 id -> 数据，查不到的id不放入
+     */
+    @SuppressWarnings("unchecked")
+    public <R, ID> void refreshAhead(String keyPrefix, Function<Collection<ID>, Map<ID, R>> batchDbCallback,
+                                     Long time, TimeUnit unit) {
+        refreshLoaders.put(keyPrefix, new RefreshLoader(
+                ids -> (Map<Object, Object>) (Map<?, ?>) batchDbCallback.apply((Collection<ID>) (Collection<?>) ids), unit.toMillis(time)));
+    }
 
     public void set(String key,Object value,Long time,TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(value),time,unit);
+        byte[] bytes = cacheCodec.encode(value, 0);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.stringCommands()
+                .set(rawKey(key), bytes, Expiration.from(time, unit), RedisStringCommands.SetOption.upsert()));
+        invalidateLocal(key);
     }
 
     public void setWithLogicalExpire(String key,Object value,Long time,TimeUnit unit){
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        byte[] bytes = cacheCodec.encode(value, System.currentTimeMillis() + unit.toMillis(time));
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.stringCommands()
+                .set(rawKey(key), bytes, Expiration.milliseconds(physicalTtl(unit.toMillis(time))),
+                        RedisStringCommands.SetOption.upsert()));
+        invalidateLocal(key);
+    }
+
+    //逻辑过期的值在redis中的过期时间，单位毫秒
+    private long physicalTtl(long logicalMillis) {
+        return logicalMillis + TimeUnit.SECONDS.toMillis(logicalGraceSeconds);
+    }
+
+    /**
+     * 删除缓存，并通知所有节点丢弃本地副本
+     */
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        //删除后不再提前刷新，下次读到时再跟踪
+        tracked.remove(key);
+        invalidateLocal(key);
+    }
+
+
+    /**
+     * 按访问热度选择缓存方式：普通key走布隆过滤器+互斥锁，redis中带真实过期时间；
+     * 本节点探测到的热点key改走逻辑过期并常驻本地缓存，热度下降后恢复redis中的过期时间。
+     * 没开启热点探测时都按普通key处理
+     */
+    public <R, ID> R query(String keyPrefix, ID id, Class<R> type, ScalableBloomFilter<ID> bloomFilter,
+                           Function<ID,R> dbCallback, Long time, TimeUnit unit) {
+        String cacheKey = keyPrefix + id;
+        if(hotKeyDetector == null){
+            return queryWithBloomAndLock(keyPrefix, id, type, bloomFilter, dbCallback, time, unit);
+        }
+        boolean wasHot = hotKeyDetector.isHot(cacheKey);
+        if(!hotKeyDetector.record(cacheKey, unit.toMillis(time))){
+            return queryWithBloomAndLock(keyPrefix, id, type, bloomFilter, dbCallback, time, unit);
+        }
+        if(!wasHot){
+            //刚晋升为热点：丢掉本地的普通副本，逻辑过期查询读到redis中不带逻辑过期的值时会在后台重建成逻辑过期
+            log.info("晋升热点key：{}", cacheKey);
+            dropLocal(cacheKey);
+        }
+        R r = queryWithLogicalLock(keyPrefix, id, type, dbCallback, time, unit);
+        if(r != null){
+            return r;
+        }
+        //redis中没有，按普通方式加载一次，下次读取时再转成逻辑过期
+        r = queryWithBloomAndLock(keyPrefix, id, type, bloomFilter, dbCallback, time, unit);
+        dropLocal(cacheKey);
+        return r;
+    }
+
+    /**
+     * 热点探测窗口向前滑动一格，降级热度下降的key：丢弃常驻的本地副本，给redis中的值恢复过期时间
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.hot-key.slot-ms:10000}")
+    public void slideHotKeys() {
+        if(hotKeyDetector == null){
+            return;
+        }
+        for (Map.Entry<String, HotKeyDetector.HotKey> entry : hotKeyDetector.slide().entrySet()) {
+            String key = entry.getKey();
+            pinned.remove(key);
+            tracked.remove(key);
+            stringRedisTemplate.expire(key, entry.getValue().getTtlMillis(), TimeUnit.MILLISECONDS);
+            log.info("热点key降级：{}", key);
+        }
     }
 
+    /**
+     * 本节点当前的热点key
+     */
+    public List<Map<String, Object>> hotKeys() {
+        return hotKeyDetector == null ? Collections.emptyList() : hotKeyDetector.hotKeys();
+    }
 
     public <R,ID> R queryWithLogicalLock(
             String keyPrefix, ID id, Class<R> type,Function<ID,R> dbCallback,Long time,TimeUnit unit){
-        //从redis中查询
         String cacheKey = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(cacheKey);
+        CacheStats s = stats(keyPrefix);
+        //先查本地缓存，逻辑过期的本地副本不直接用，交给下面判断是否重建
+        Cache<String, LocalValue> local = localCaches.get(keyPrefix);
+        LocalValue cached = getLocal(local, cacheKey);
+        long now = System.currentTimeMillis();
+        if(cached != null && (cached.expireAt == 0 || cached.expireAt > now)){
+            s.l1Hits.increment();
+            track(keyPrefix, id, cacheKey, cached.expireAt, now);
+            return type.cast(cached.data);
+        }
+        //从redis中查询
+        byte[] bytes = getRaw(cacheKey);
         //不存在，报错
-        if(StrUtil.isBlank(json)){
+        if(bytes == null || bytes.length == 0){
+            s.misses.increment();
             return null;
         }
+        s.l2Hits.increment();
 
-        //存在,判断是否逻辑过期
-        //转换为RedisData对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        //存在,先只读逻辑过期时间；和本地副本是同一版本时不用再解析数据
+        long expireAt = cacheCodec.expireAt(bytes);
+        R r;
+        if(cached != null && cached.expireAt == expireAt){
+            r = type.cast(cached.data);
+        }else{
+            r = cacheCodec.decode(bytes, type);
+            if(r == null){
+                //类结构变了，旧数据无法解析，同步重建一次
+                r = dbCallback.apply(id);
+                if(r != null){
+                    this.setWithLogicalExpire(cacheKey, r, time, unit);
+                }
+                return r;
+            }
+            putLocal(local, cacheKey, r, expireAt);
+        }
+        track(keyPrefix, id, cacheKey, expireAt, now);
         //没逻辑过期
-        if(expireTime.isAfter(LocalDateTime.now())){
+        if(expireAt > now){
             //返回redis数据
             return r;
         }
 
         //逻辑过期
+        //本节点已经在重建就不再去抢redis锁
+        if(!rebuilding.add(cacheKey)){
+            s.coalesced.increment();
+            return r;
+        }
         String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
         //获取互斥锁
-        boolean isLock = tryLock(lockKey);
-        if(isLock){
-            //开启新线程去重建缓存
+        String token = tryLock(lockKey);
+        if(token == null){
+            rebuilding.remove(cacheKey);
+            //返回过期数据
+            return r;
+        }
+        //开启新线程去重建缓存
+        try {
             CACHE_REBUILD_EXECUTOR.submit(()->{
                 try {
                     R r1 = dbCallback.apply(id);
-                    //模拟重建缓存延迟
-                    Thread.sleep(200L);
-                    this.setWithLogicalExpire(cacheKey,r1,time,unit);
+                    if(r1 != null){
+                        this.setWithLogicalExpire(cacheKey,r1,time,unit);
+                    }else{
+                        //数据库里已经删除
+                        this.delete(cacheKey);
+                    }
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    log.error("重建缓存失败：{}", cacheKey, e);
                 } finally {
                     //释放锁
-                    unlock(lockKey);
+                    unlock(lockKey, token);
+                    rebuilding.remove(cacheKey);
                 }
-
             });
+        } catch (RejectedExecutionException e) {
+            //重建任务积压，这次不重建
+            unlock(lockKey, token);
+            rebuilding.remove(cacheKey);
+            log.warn("缓存重建任务已满，跳过：{}", cacheKey);
         }
         //返回过期数据
         return r;
     }
 
     public <R, ID> R queryWithBloomAndLock
-            (String keyPrefix, ID id, Class<R> type, RBloomFilter<ID> bloomFilter,
+            (String keyPrefix, ID id, Class<R> type, ScalableBloomFilter<ID> bloomFilter,
              Function<ID,R> dbCallback,Long time,TimeUnit unit){
-        if(bloomFilter.contains(id)){
-            //从redis中查询
-            String cacheKey = keyPrefix + id;
-            String json = stringRedisTemplate.opsForValue().get(cacheKey);
-            //存在，返回
-            if(StrUtil.isNotBlank(json)){
-                R r = JSONUtil.toBean(json, type);
-                return r;
+        String cacheKey = keyPrefix + id;
+        CacheStats s = stats(keyPrefix);
+        //先查本地缓存，本地有的一定存在，不用再访问redis查布隆过滤器；其他节点当作热点写入的逻辑过期副本过期后不用
+        Cache<String, LocalValue> local = localCaches.get(keyPrefix);
+        LocalValue cached = getLocal(local, cacheKey);
+        if(cached != null && (cached.expireAt == 0 || cached.expireAt > System.currentTimeMillis())){
+            s.l1Hits.increment();
+            return type.cast(cached.data);
+        }
+        //本地未命中才查布隆过滤器，拦住不存在的id
+        if(!bloomFilter.contains(id)){
+            return null;
+        }
+        //从redis中查询
+        R cachedValue = readFresh(cacheKey, type);
+        //存在，返回
+        if(cachedValue != null){
+            s.l2Hits.increment();
+            putLocal(local, cacheKey, cachedValue, 0);
+            return cachedValue;
+        }
+        s.misses.increment();
+        //不存在，本节点同一个key只有一个线程去抢锁查库，其余线程等它的结果
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> flight = inFlight.putIfAbsent(cacheKey, mine);
+        if(flight != null){
+            s.coalesced.increment();
+            return type.cast(awaitFlight(flight, cacheKey, type));
+        }
+        try {
+            R r = loadWithLock(cacheKey, id, type, bloomFilter, dbCallback, time, unit);
+            if(r != null){
+                putLocal(local, cacheKey, r, 0);
+            }
+            mine.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(cacheKey, mine);
+        }
+    }
+
+    /**
+     * 批量查询：一次MGET读redis，未命中的id合并成一次批量查库，再用一次pipeline写回。
+     * 查库得到的值按 time 设置过期时间，数据库中也不存在的id缓存空值 CACHE_NULL_TTL 分钟；
+     * redis中带逻辑过期的值照常返回，已过期的在后台合并成一次批量查库重建。
+     * 批量加载不抢redis锁，多个节点同时未命中时各自查库，写入的是相同的数据
+     * @param batchDbCallback 按一批id查库，返回 id -> 数据，查不到的id不放入
+     * @return id -> 数据，按 ids 的顺序，不存在的id不在结果中
+     */
+    public <R, ID> Map<ID, R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                         Function<Collection<ID>, Map<ID, R>> batchDbCallback,
+                                         Long time, TimeUnit unit) {
+        Map<ID, R> found = new HashMap<>();
+        if(ids == null || ids.isEmpty()){
+            return new LinkedHashMap<>();
+        }
+        CacheStats s = stats(keyPrefix);
+        Cache<String, LocalValue> local = localCaches.get(keyPrefix);
+        long now = System.currentTimeMillis();
+        //先查本地缓存
+        List<ID> remote = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            LocalValue cached = getLocal(local, keyPrefix + id);
+            if(cached != null && (cached.expireAt == 0 || cached.expireAt > now)){
+                s.l1Hits.increment();
+                found.put(id, type.cast(cached.data));
+            }else{
+                remote.add(id);
+            }
+        }
+        if(remote.isEmpty()){
+            return inOrder(ids, found);
+        }
+        //一次MGET读剩下的
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> {
+            byte[][] keys = new byte[remote.size()][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = rawKey(keyPrefix + remote.get(i));
+            }
+            return connection.stringCommands().mGet(keys);
+        });
+        //redis中没有的
+        List<ID> misses = new ArrayList<>();
+        //逻辑过期数据的类结构变了，需要同步重建的
+        List<ID> reloads = new ArrayList<>();
+        //逻辑过期、交给后台重建的
+        List<ID> expired = new ArrayList<>();
+        for (int i = 0; i < remote.size(); i++) {
+            ID id = remote.get(i);
+            byte[] bytes = values == null ? null : values.get(i);
+            if(bytes == null){
+                s.misses.increment();
+                misses.add(id);
+                continue;
+            }
+            s.l2Hits.increment();
+            //空值缓存，数据库中不存在
+            if(bytes.length == 0){
+                continue;
+            }
+            long expireAt = cacheCodec.expireAt(bytes);
+            R r = cacheCodec.decode(bytes, type);
+            if(r == null){
+                //类结构变了，旧数据无法解析，按原来的过期方式重新查库
+                (expireAt > 0 ? reloads : misses).add(id);
+                continue;
+            }
+            found.put(id, r);
+            putLocal(local, keyPrefix + id, r, expireAt);
+            if(expireAt > 0){
+                track(keyPrefix, id, keyPrefix + id, expireAt, now);
+            }
+            if(expireAt > 0 && expireAt <= now){
+                if(rebuilding.add(keyPrefix + id)){
+                    expired.add(id);
+                }else{
+                    s.coalesced.increment();
+                }
+            }
+        }
+        if(!misses.isEmpty() || !reloads.isEmpty()){
+            List<ID> loads = new ArrayList<>(misses);
+            loads.addAll(reloads);
+            Map<ID, R> loaded = batchDbCallback.apply(loads);
+            List<PendingWrite> writes = new ArrayList<>(loads.size());
+            for (ID id : misses) {
+                R r = loaded.get(id);
+                if(r == null){
+                    writes.add(new PendingWrite(keyPrefix + id, new byte[0], TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL), false));
+                    continue;
+                }
+                found.put(id, r);
+                putLocal(local, keyPrefix + id, r, 0);
+                writes.add(new PendingWrite(keyPrefix + id, cacheCodec.encode(r, 0), unit.toMillis(time), false));
+            }
+            long expireAt = System.currentTimeMillis() + unit.toMillis(time);
+            for (ID id : reloads) {
+                R r = loaded.get(id);
+                if(r != null){
+                    found.put(id, r);
+                    writes.add(new PendingWrite(keyPrefix + id, cacheCodec.encode(r, expireAt), physicalTtl(unit.toMillis(time)), notifies(keyPrefix)));
+                }
             }
-            //不存在，获取互斥锁
-            String lockKey = "lock:shop:"+id;
-            R r = null;
+            writeBatch(writes);
+        }
+        if(!expired.isEmpty()){
             try {
-                boolean isTrue = tryLock(lockKey);
-                if(!isTrue){
-                    Thread.sleep(50);
-                    return queryWithBloomAndLock(keyPrefix,id,type,bloomFilter,dbCallback,time,unit);
+                CACHE_REBUILD_EXECUTOR.submit(() -> rebuildBatch(keyPrefix, expired, batchDbCallback, notifies(keyPrefix), time, unit));
+            } catch (RejectedExecutionException e) {
+                for (ID id : expired) {
+                    rebuilding.remove(keyPrefix + id);
                 }
-                //拿到锁再查一次缓存
-                json = stringRedisTemplate.opsForValue().get(cacheKey);
-                //存在，返回
-                if(StrUtil.isNotBlank(json)){
-                    r = JSONUtil.toBean(json, type);
-                    return r;
+                log.warn("缓存重建任务已满，跳过 {} 个：{}", expired.size(), keyPrefix);
+            }
+        }
+        return inOrder(ids, found);
+    }
+
+    //后台批量重建逻辑过期的缓存，数据库中已不存在的保留旧值，由调用方的删除逻辑处理
+    private <R, ID> void rebuildBatch(String keyPrefix, List<ID> ids, Function<Collection<ID>, Map<ID, R>> batchDbCallback,
+                                      boolean notify, Long time, TimeUnit unit) {
+        try {
+            Map<ID, R> loaded = batchDbCallback.apply(ids);
+            long expireAt = System.currentTimeMillis() + unit.toMillis(time);
+            List<PendingWrite> writes = new ArrayList<>(loaded.size());
+            for (Map.Entry<ID, R> entry : loaded.entrySet()) {
+                writes.add(new PendingWrite(keyPrefix + entry.getKey(), cacheCodec.encode(entry.getValue(), expireAt), physicalTtl(unit.toMillis(time)), notify));
+            }
+            writeBatch(writes);
+        } catch (Exception e) {
+            log.error("批量重建缓存失败：{}{}", keyPrefix, ids, e);
+        } finally {
+            for (ID id : ids) {
+                rebuilding.remove(keyPrefix + id);
+            }
+        }
+    }
+
+    //记录本节点读到的逻辑过期key，只跟踪登记了批量加载方式的前缀
+    private void track(String keyPrefix, Object id, String cacheKey, long expireAt, long now) {
+        if(expireAt <= 0 || !refreshLoaders.containsKey(keyPrefix)){
+            return;
+        }
+        Tracked t = tracked.get(cacheKey);
+        if(t == null){
+            if(tracked.size() >= refreshMaxKeys){
+                return;
+            }
+            t = tracked.computeIfAbsent(cacheKey, k -> new Tracked(keyPrefix, id));
+        }
+        t.expireAt = expireAt;
+        t.lastAccess = now;
+    }
+
+    //提前刷新：丢掉一段时间没被读过的key，快到期的按过期时间先后取本轮额度内的，按前缀批量查库后一次pipeline写回
+    private void refreshDue() {
+        try {
+            long now = System.currentTimeMillis();
+            List<Map.Entry<String, Tracked>> due = new ArrayList<>();
+            for (Map.Entry<String, Tracked> entry : tracked.entrySet()) {
+                Tracked t = entry.getValue();
+                if(t.lastAccess < now - refreshIdleMs){
+                    tracked.remove(entry.getKey(), t);
+                    stats(t.keyPrefix).refreshIdle.increment();
+                }else if(t.expireAt - now <= refreshAheadMs && !rebuilding.contains(entry.getKey())){
+                    due.add(entry);
                 }
-                //不存在,查数据库
-                r = dbCallback.apply(id);
-                //模拟重建缓存的延迟
-                Thread.sleep(200);
-                //数据库里不存在，报错
-                if(r == null){
-                    return null;
+            }
+            if(due.isEmpty()){
+                return;
+            }
+            due.sort(Comparator.comparingLong(e -> e.getValue().expireAt));
+            int budget = (int) Math.max(1, refreshMaxPerSecond * refreshIntervalMs / 1000);
+            if(due.size() > budget){
+                for (Map.Entry<String, Tracked> entry : due.subList(budget, due.size())) {
+                    stats(entry.getValue().keyPrefix).refreshDeferred.increment();
                 }
+                due = due.subList(0, budget);
+            }
+            Map<String, List<Map.Entry<String, Tracked>>> byPrefix = new LinkedHashMap<>();
+            for (Map.Entry<String, Tracked> entry : due) {
+                byPrefix.computeIfAbsent(entry.getValue().keyPrefix, k -> new ArrayList<>()).add(entry);
+            }
+            for (Map.Entry<String, List<Map.Entry<String, Tracked>>> group : byPrefix.entrySet()) {
+                List<Map.Entry<String, Tracked>> entries = group.getValue();
+                for (int i = 0; i < entries.size(); i += refreshBatchSize) {
+                    refreshBatch(group.getKey(), entries.subList(i, Math.min(i + refreshBatchSize, entries.size())));
+                }
+            }
+        } catch (Exception e) {
+            log.error("缓存提前刷新异常", e);
+        }
+    }
+
+    private void refreshBatch(String keyPrefix, List<Map.Entry<String, Tracked>> entries) {
+        RefreshLoader loader = refreshLoaders.get(keyPrefix);
+        long now = System.currentTimeMillis();
+        //其他节点可能已经刷新过，先一次MGET读出当前的逻辑过期时间
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> {
+            byte[][] keys = new byte[entries.size()][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = rawKey(entries.get(i).getKey());
+            }
+            return connection.stringCommands().mGet(keys);
+        });
+        Map<Object, Map.Entry<String, Tracked>> stale = new LinkedHashMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            Map.Entry<String, Tracked> entry = entries.get(i);
+            byte[] bytes = values == null ? null : values.get(i);
+            long expireAt = bytes == null || bytes.length == 0 ? 0 : cacheCodec.expireAt(bytes);
+            if(expireAt <= 0){
+                //已删除或者已降级为带过期时间的值，不再刷新
+                tracked.remove(entry.getKey(), entry.getValue());
+            }else if(expireAt - now > refreshAheadMs){
+                entry.getValue().expireAt = expireAt;
+            }else if(rebuilding.add(entry.getKey())){
+                stale.put(entry.getValue().id, entry);
+            }
+        }
+        if(stale.isEmpty()){
+            return;
+        }
+        try {
+            Map<Object, Object> loaded = loader.batchDbCallback.apply(stale.keySet());
+            long expireAt = System.currentTimeMillis() + loader.ttlMillis;
+            List<PendingWrite> writes = new ArrayList<>(loaded.size());
+            for (Map.Entry<Object, Map.Entry<String, Tracked>> entry : stale.entrySet()) {
+                String cacheKey = entry.getValue().getKey();
+                Object value = loaded.get(entry.getKey());
+                if(value == null){
+                    //数据库里已经删除，交给读时的逻辑处理
+                    tracked.remove(cacheKey, entry.getValue().getValue());
+                    continue;
+                }
+                writes.add(new PendingWrite(cacheKey, cacheCodec.encode(value, expireAt), physicalTtl(loader.ttlMillis), notifies(keyPrefix)));
+                entry.getValue().getValue().expireAt = expireAt;
+            }
+            writeBatch(writes);
+            stats(keyPrefix).refreshed.add(writes.size());
+        } finally {
+            for (Map.Entry<String, Tracked> entry : stale.values()) {
+                rebuilding.remove(entry.getKey());
+            }
+        }
+    }
+
+    //一次pipeline写回，覆盖已有值的同时通知其他节点丢弃本地副本；每个值都带过期时间，逻辑过期的值也不例外
+    private void writeBatch(List<PendingWrite> writes) {
+        if(writes.isEmpty()){
+            return;
+        }
+        byte[] channel = rawKey(RedisConstants.CACHE_INVALIDATE_CHANNEL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (PendingWrite write : writes) {
+                byte[] key = rawKey(write.key);
+                connection.stringCommands().set(key, write.value,
+                        Expiration.milliseconds(write.ttlMillis), RedisStringCommands.SetOption.upsert());
+                if(write.notify){
+                    dropLocal(write.key);
+                    connection.publish(channel, key);
+                }
+            }
+            return null;
+        });
+    }
+
+    private static <R, ID> Map<ID, R> inOrder(Collection<ID> ids, Map<ID, R> found) {
+        Map<ID, R> result = new LinkedHashMap<>();
+        for (ID id : ids) {
+            R r = found.get(id);
+            if(r != null){
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
 
-                //存在，先存入bloomFilter再存入redis
-                bloomFilter.add(id);
-                this.set(cacheKey,r,time,unit);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            } finally {
-                unlock(lockKey);
+    //抢到redis锁的节点查库重建；没抢到说明其他节点在重建，等它写入缓存，超时后报错而不是查库，
+    //否则重建慢的时候所有等待的请求会一起压到数据库上。返回null只表示数据库里不存在
+    private <R, ID> R loadWithLock(String cacheKey, ID id, Class<R> type, ScalableBloomFilter<ID> bloomFilter,
+                                   Function<ID,R> dbCallback, Long time, TimeUnit unit) {
+        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
+        long deadline = System.currentTimeMillis() + singleFlightWaitMs;
+        String token;
+        try {
+            while ((token = tryLock(lockKey)) == null) {
+                if(System.currentTimeMillis() > deadline){
+                    throw new IllegalStateException("等待缓存重建超时：" + cacheKey);
+                }
+                Thread.sleep(LOCK_RETRY_MS);
+                R r = readFresh(cacheKey, type);
+                if(r != null){
+                    return r;
+                }
             }
-            //返回结果
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        try {
+            //拿到锁再查一次缓存
+            R cachedValue = readFresh(cacheKey, type);
+            //存在，返回
+            if(cachedValue != null){
+                return cachedValue;
+            }
+            //不存在,查数据库
+            R r = dbCallback.apply(id);
+            //数据库里不存在，说明布隆过滤器误判
+            if(r == null){
+                bloomFilter.recordFalsePositive();
+                return null;
+            }
+            //存在，先存入bloomFilter再存入redis
+            bloomFilter.add(id);
+            this.set(cacheKey,r,time,unit);
             return r;
-        }else{
+        } finally {
+            unlock(lockKey, token);
+        }
+    }
+
+    //等待本节点正在进行的加载，超时或加载失败时再读一次redis，仍没有就报错，不让等待的请求各自查库
+    private Object awaitFlight(CompletableFuture<Object> flight, String cacheKey, Class<?> type) {
+        try {
+            return flight.get(singleFlightWaitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("等待缓存加载失败：{}，{}", cacheKey, e.toString());
+            Object cached = read(cacheKey, type);
+            if(cached == null){
+                throw new IllegalStateException("等待缓存加载失败：" + cacheKey, e);
+            }
+            return cached;
+        }
+    }
+
+    //读取并解码redis中的缓存，不存在或无法解析时返回null
+    private <R> R read(String cacheKey, Class<R> type) {
+        byte[] bytes = getRaw(cacheKey);
+        return bytes == null || bytes.length == 0 ? null : cacheCodec.decode(bytes, type);
+    }
+
+    //按真实过期时间读取时用：热点节点写入的逻辑过期值已经过期的当作不存在，重新查库写回带过期时间的值
+    private <R> R readFresh(String cacheKey, Class<R> type) {
+        byte[] bytes = getRaw(cacheKey);
+        if(bytes == null || bytes.length == 0){
+            return null;
+        }
+        long expireAt = cacheCodec.expireAt(bytes);
+        if(expireAt > 0 && expireAt <= System.currentTimeMillis()){
             return null;
         }
+        return cacheCodec.decode(bytes, type);
     }
 
-    private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1");
-        return BooleanUtil.isTrue(flag);
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(rawKey(key)));
     }
 
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 各key前缀的本地缓存和redis命中情况
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, CacheStats> entry : stats.entrySet()) {
+            Cache<String, LocalValue> local = localCaches.get(entry.getKey());
+            result.put(entry.getKey(), entry.getValue().snapshot(local));
+        }
+        return result;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        dropLocal(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    //丢弃本节点的本地副本并通知其他节点
+    private void invalidateLocal(String key) {
+        if(localCacheOf(key) == null && hotKeyDetector == null){
+            return;
+        }
+        dropLocal(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    //只丢弃本节点的本地副本，包括热点key的常驻副本
+    private void dropLocal(String key) {
+        pinned.remove(key);
+        Cache<String, LocalValue> local = localCacheOf(key);
+        if(local != null){
+            local.invalidate(key);
+        }
+    }
+
+    //覆盖redis中已有的值时是否需要广播，其他节点可能有这个key的本地副本
+    private boolean notifies(String keyPrefix) {
+        return localCaches.containsKey(keyPrefix) || hotKeyDetector != null;
+    }
+
+    private Cache<String, LocalValue> localCacheOf(String key) {
+        for (Map.Entry<String, Cache<String, LocalValue>> entry : localCaches.entrySet()) {
+            if(key.startsWith(entry.getKey())){
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    //热点key的常驻副本优先
+    private LocalValue getLocal(Cache<String, LocalValue> local, String key) {
+        LocalValue value = pinned.get(key);
+        if(value != null){
+            return value;
+        }
+        return local == null ? null : local.getIfPresent(key);
+    }
+
+    private void putLocal(Cache<String, LocalValue> local, String key, Object value, long expireAt) {
+        if(value == null){
+            return;
+        }
+        if(hotKeyDetector != null && hotKeyDetector.isHot(key)){
+            pinned.put(key, new LocalValue(value, expireAt));
+        }
+        if(local != null){
+            local.put(key, new LocalValue(value, expireAt));
+        }
+    }
+
+    private CacheStats stats(String keyPrefix) {
+        return stats.computeIfAbsent(keyPrefix, k -> new CacheStats());
+    }
+
+    //本地缓存的值：解码后的对象和逻辑过期时间，0表示不带逻辑过期
+    private static class LocalValue {
+        private final Object data;
+        private final long expireAt;
+
+        LocalValue(Object data, long expireAt) {
+            this.data = data;
+            this.expireAt = expireAt;
+        }
+    }
+
+    //提前刷新用的批量加载方式和逻辑过期时长
+    private static class RefreshLoader {
+        private final Function<Collection<Object>, Map<Object, Object>> batchDbCallback;
+        private final long ttlMillis;
+
+        RefreshLoader(Function<Collection<Object>, Map<Object, Object>> batchDbCallback, long ttlMillis) {
+            this.batchDbCallback = batchDbCallback;
+            this.ttlMillis = ttlMillis;
+        }
+    }
+
+    //本节点跟踪的逻辑过期key
+    private static class Tracked {
+        private final String keyPrefix;
+        private final Object id;
+        private volatile long expireAt;
+        private volatile long lastAccess;
+
+        Tracked(String keyPrefix, Object id) {
+            this.keyPrefix = keyPrefix;
+            this.id = id;
+        }
+    }
+
+    //批量写回的一条：ttlMillis 为redis中的过期时间，逻辑过期的值是逻辑过期时长加宽限时间，notify 表示覆盖了已有值需要广播本地缓存失效
+    private static class PendingWrite {
+        private final String key;
+        private final byte[] value;
+        private final long ttlMillis;
+        private final boolean notify;
+
+        PendingWrite(String key, byte[] value, long ttlMillis, boolean notify) {
+            this.key = key;
+            this.value = value;
+            this.ttlMillis = ttlMillis;
+            this.notify = notify;
+        }
+    }
+
+    private static class CacheStats {
+        private final LongAdder l1Hits = new LongAdder();
+        private final LongAdder l2Hits = new LongAdder();
+        //redis中也没有
+        private final LongAdder misses = new LongAdder();
+        //合并到本节点已有加载或重建上的请求
+        private final LongAdder coalesced = new LongAdder();
+        //提前刷新的key数，超出每秒额度推迟到下一轮的次数，长时间没被读过不再刷新的key数
+        private final LongAdder refreshed = new LongAdder();
+        private final LongAdder refreshDeferred = new LongAdder();
+        private final LongAdder refreshIdle = new LongAdder();
+
+        Map<String, Object> snapshot(Cache<String, LocalValue> local) {
+            long l1 = l1Hits.sum();
+            long l2 = l2Hits.sum();
+            long miss = misses.sum();
+            long requests = l1 + l2 + miss;
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("requests", requests);
+            map.put("l1Hits", l1);
+            map.put("l2Hits", l2);
+            map.put("misses", miss);
+            map.put("coalesced", coalesced.sum());
+            map.put("refreshed", refreshed.sum());
+            map.put("refreshDeferred", refreshDeferred.sum());
+            map.put("refreshIdle", refreshIdle.sum());
+            map.put("l1HitRatio", requests == 0 ? 0 : (double) l1 / requests);
+            //本地缓存未命中的请求中redis命中的比例
+            map.put("l2HitRatio", l2 + miss == 0 ? 0 : (double) l2 / (l2 + miss));
+            map.put("localEnabled", local != null);
+            map.put("localSize", local == null ? 0 : local.estimatedSize());
+            return map;
+        }
+    }
+
+    //加锁成功返回本次加锁的token，失败返回null；逻辑过期重建在另一个线程解锁，不能用线程id
+    private String tryLock(String key){
+        //锁带过期时间，持有锁的节点宕机也不会一直锁住
+        String token = UUID.randomUUID().toString(true);
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, token, RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        return BooleanUtil.isTrue(flag) ? token : null;
+    }
+
+    //只删除自己加的锁，重建超过锁的过期时间后锁可能已经被其他节点拿走
+    private void unlock(String key, String token){
+        redisScripts.execute(RedisScripts.UNLOCK, Collections.singletonList(key), token);
     }
 }
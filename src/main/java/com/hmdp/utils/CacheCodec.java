@@ -0,0 +1,24 @@
+package com.hmdp.utils;
+
+/**
+ * CacheClient 写入redis的缓存值编码。
+ * 逻辑过期时间和数据编码在一起，实现需要能只读出过期时间而不解析数据
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码缓存值
+     * @param expireAt 逻辑过期时间（毫秒时间戳），0表示不带逻辑过期
+     */
+    byte[] encode(Object value, long expireAt);
+
+    /**
+     * 只读出逻辑过期时间，不带逻辑过期时返回0
+     */
+    long expireAt(byte[] bytes);
+
+    /**
+     * 解码缓存值，数据与 type 的结构不匹配时返回null
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+}
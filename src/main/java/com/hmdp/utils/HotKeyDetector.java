@@ -0,0 +1,144 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 本节点的热点key探测：滑动窗口上的 count-min sketch。
+ * 窗口分成 slots 格，每格一个 depth×width 的计数矩阵，只写当前格；一个key的估计值是每一行对应计数在整个窗口内之和的最小值，
+ * 只会高估不会低估，占用内存与key的个数无关。
+ * 估计值达到 threshold 的key晋升为热点，窗口滑动时低于 threshold 一半的降级，中间留出滞后区间避免来回切换
+ */
+public class HotKeyDetector {
+
+    private final int depth;
+    private final int width;
+    private final long threshold;
+    private final int maxHotKeys;
+    private final AtomicIntegerArray[] slots;
+    private volatile int current;
+
+    //热点key -> 晋升信息
+    private final Map<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    /**
+     * @param width 每行计数个数，取整到2的幂
+     */
+    public HotKeyDetector(int slots, int depth, int width, long threshold, int maxHotKeys) {
+        this.depth = depth;
+        this.width = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+        this.threshold = threshold;
+        this.maxHotKeys = maxHotKeys;
+        this.slots = new AtomicIntegerArray[slots];
+        for (int i = 0; i < slots; i++) {
+            this.slots[i] = new AtomicIntegerArray(depth * this.width);
+        }
+    }
+
+    /**
+     * 记录一次访问，返回key现在是否是热点
+     * @param ttlMillis 这个key非热点时的过期时间，降级时恢复
+     */
+    public boolean record(String key, long ttlMillis) {
+        AtomicIntegerArray slot = slots[current];
+        int hash = spread(key.hashCode());
+        for (int row = 0; row < depth; row++) {
+            slot.incrementAndGet(index(hash, row));
+        }
+        if(hotKeys.containsKey(key)){
+            return true;
+        }
+        if(estimate(hash) < threshold || hotKeys.size() >= maxHotKeys){
+            return false;
+        }
+        hotKeys.putIfAbsent(key, new HotKey(ttlMillis));
+        return true;
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 窗口向前滑动一格：清空最旧的一格作为新的当前格，返回降级的key和它们晋升时的信息
+     */
+    public synchronized Map<String, HotKey> slide() {
+        int next = (current + 1) % slots.length;
+        AtomicIntegerArray slot = slots[next];
+        for (int i = 0; i < slot.length(); i++) {
+            slot.set(i, 0);
+        }
+        current = next;
+        Map<String, HotKey> demoted = new LinkedHashMap<>();
+        for (Map.Entry<String, HotKey> entry : hotKeys.entrySet()) {
+            if(estimate(spread(entry.getKey().hashCode())) < threshold / 2){
+                hotKeys.remove(entry.getKey());
+                demoted.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return demoted;
+    }
+
+    /**
+     * 当前的热点key，按窗口内估计访问次数从高到低
+     */
+    public List<Map<String, Object>> hotKeys() {
+        List<Map<String, Object>> list = new ArrayList<>(hotKeys.size());
+        for (Map.Entry<String, HotKey> entry : hotKeys.entrySet()) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("key", entry.getKey());
+            map.put("estimate", estimate(spread(entry.getKey().hashCode())));
+            map.put("since", entry.getValue().since);
+            list.add(map);
+        }
+        list.sort((a, b) -> Long.compare((Long) b.get("estimate"), (Long) a.get("estimate")));
+        return list;
+    }
+
+    private long estimate(int hash) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int index = index(hash, row);
+            long sum = 0;
+            for (AtomicIntegerArray slot : slots) {
+                sum += slot.get(index);
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    //每行用 h1 + row * h2 作为不同的哈希函数
+    private int index(int hash, int row) {
+        int h2 = (hash >>> 16) | 1;
+        return row * width + ((hash + row * h2) & (width - 1));
+    }
+
+    //打散hashCode的低位
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    public static class HotKey {
+        //晋升时间
+        private final long since = System.currentTimeMillis();
+        //非热点时的过期时间，单位毫秒
+        private final long ttlMillis;
+
+        HotKey(long ttlMillis) {
+            this.ttlMillis = ttlMillis;
+        }
+
+        public long getTtlMillis() {
+            return ttlMillis;
+        }
+    }
+}
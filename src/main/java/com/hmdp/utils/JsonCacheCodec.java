@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * json编码，与原来的格式相同：带逻辑过期时是 RedisData，否则直接是数据本身
+ */
+@Component
+@ConditionalOnProperty(name = "hmdp.cache.codec", havingValue = "json", matchIfMissing = true)
+public class JsonCacheCodec implements CacheCodec {
+
+    //RedisData 序列化后以过期时间开头，时间是毫秒时间戳
+    private static final byte[] EXPIRE_PREFIX = "{\"expireTime\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EXPIRE_FIELD = "\"expireTime\"".getBytes(StandardCharsets.UTF_8);
+
+    @Override
+    public byte[] encode(Object value, long expireAt) {
+        if(expireAt <= 0){
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        //与 RedisData 的json相同，过期时间固定写成放在开头的毫秒时间戳，读过期时间时不用解析数据
+        return ("{\"expireTime\":" + expireAt + ",\"data\":" + JSONUtil.toJsonStr(value) + "}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 读逻辑过期时间时不解析整个json：开头就是毫秒时间戳的直接读数字，根本没有 expireTime 字段的返回0，
+     * 其他格式（字段顺序不同、时间是字符串）才完整解析
+     */
+    @Override
+    public long expireAt(byte[] bytes) {
+        if(startsWith(bytes, EXPIRE_PREFIX)){
+            long millis = 0;
+            int i = EXPIRE_PREFIX.length;
+            while (i < bytes.length && bytes[i] >= '0' && bytes[i] <= '9') {
+                millis = millis * 10 + (bytes[i++] - '0');
+            }
+            if(i > EXPIRE_PREFIX.length && i < bytes.length && bytes[i] == ','){
+                return millis;
+            }
+        }else if(indexOf(bytes, EXPIRE_FIELD) < 0){
+            return 0;
+        }
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        if(!isRedisData(json)){
+            return 0;
+        }
+        LocalDateTime expireTime = JSONUtil.toBean(json, RedisData.class).getExpireTime();
+        return expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        if(isRedisData(json)){
+            json = json.getJSONObject("data");
+        }
+        return JSONUtil.toBean(json, type);
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        if(bytes.length < prefix.length){
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if(bytes[i] != prefix[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] target) {
+        for (int i = 0; i <= bytes.length - target.length; i++) {
+            int j = 0;
+            while (j < target.length && bytes[i + j] == target[j]) {
+                j++;
+            }
+            if(j == target.length){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isRedisData(JSONObject json) {
+        return json.containsKey("expireTime") && json.containsKey("data");
+    }
+}
@@ -14,8 +14,22 @@ import java.util.concurrent.TimeUnit;
 
 public class LoginInterceptor implements HandlerInterceptor {
 
+    //只拦截写请求，GET等只读请求不用登录
+    private final boolean writeOnly;
+
+    public LoginInterceptor() {
+        this(false);
+    }
+
+    public LoginInterceptor(boolean writeOnly) {
+        this.writeOnly = writeOnly;
+    }
+
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if(writeOnly && isReadOnly(request.getMethod())){
+            return true;
+        }
         //判断是否需要拦截
         if(UserHolder.getUser() == null){
             response.setStatus(401);
@@ -25,6 +39,10 @@ public class LoginInterceptor implements HandlerInterceptor {
         return true;
     }
 
+    private static boolean isReadOnly(String method) {
+        return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method);
+    }
+
     @Override
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
         //移除用户
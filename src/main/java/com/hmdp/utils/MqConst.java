@@ -4,4 +4,11 @@ public class MqConst {
     public static final String ORDER_EXCHANGE = "hmdp.order";
     public static final String ORDER_QUEUE = "hmdp.order.queue";
     public static final String ORDER_ROUTINGKEY = "hmdp.order";
+
+    //消费失败且重投过一次的订单消息转入死信队列，等待人工处理
+    public static final String ORDER_DLX_EXCHANGE = "hmdp.order.dlx";
+    public static final String ORDER_DLX_QUEUE = "hmdp.order.dlx.queue";
+
+    //批量消费订单的监听容器
+    public static final String ORDER_BATCH_CONTAINER_FACTORY = "orderBatchContainerFactory";
 }
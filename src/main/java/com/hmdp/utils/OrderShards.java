@@ -0,0 +1,153 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * 订单分表：tb_voucher_order 按 user_id 拆成 tb_voucher_order_0 ~ tb_voucher_order_{M-1}。
+ * 同一用户的订单都在一张表里，一人一单的唯一索引在分表内仍然有效；
+ * 开启分表后生成的订单id最低几位是分片号，按订单id也能直接找到分表。
+ * 访问订单表前用 call/run 指定分片，MybatisConfig 中的表名处理器据此改写表名，
+ * 开启分表后未指定分片访问订单表会直接报错，避免误查原表
+ */
+@Component
+public class OrderShards {
+
+    public static final String TABLE = "tb_voucher_order";
+
+    private static final ThreadLocal<Integer> CURRENT = new ThreadLocal<>();
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    //分表数，1表示不分表，最多 RedisIdWorker.MAX_SHARDS 张
+    @Value("${hmdp.order.shard.count:1}")
+    private Integer count;
+
+    @PostConstruct
+    public void init() {
+        if(count < 1 || count > RedisIdWorker.MAX_SHARDS){
+            throw new IllegalStateException("hmdp.order.shard.count 取值范围为 1 ~ " + RedisIdWorker.MAX_SHARDS);
+        }
+    }
+
+    public boolean isEnabled() {
+        return count > 1;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int shardOf(Long userId) {
+        return isEnabled() ? (int) Math.floorMod(userId, (long) count) : 0;
+    }
+
+    //只对开启分表后生成的订单id有效，之前的订单id最低几位是序列号，要按用户路由
+    public int shardOfOrder(long orderId) {
+        return isEnabled() ? RedisIdWorker.shardOf(orderId) : 0;
+    }
+
+    /**
+     * 为用户生成订单id，开启分表时id中带上用户所在的分片
+     */
+    public long nextOrderId(Long userId) {
+        return isEnabled() ? redisIdWorker.nextId("order", shardOf(userId)) : redisIdWorker.nextId("order");
+    }
+
+    public long[] nextOrderIds(Long userId, int n) {
+        return isEnabled() ? redisIdWorker.nextIds("order", shardOf(userId), n) : redisIdWorker.nextIds("order", n);
+    }
+
+    /**
+     * 表名处理器的回调：按当前线程指定的分片返回实际表名
+     */
+    public String tableName(String table) {
+        if(!isEnabled()){
+            return table;
+        }
+        Integer shard = CURRENT.get();
+        if(shard == null){
+            throw new IllegalStateException("访问 " + table + " 前未指定分片");
+        }
+        return table + "_" + shard;
+    }
+
+    /**
+     * 在指定分片上执行，可以嵌套
+     */
+    public <T> T call(int shard, Supplier<T> action) {
+        Integer previous = CURRENT.get();
+        CURRENT.set(shard);
+        try {
+            return action.get();
+        } finally {
+            if(previous == null){
+                CURRENT.remove();
+            }else{
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    public void run(int shard, Runnable action) {
+        call(shard, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * 在每个分片上执行查询并合并结果，用于按券等不含用户的条件查询
+     */
+    public <T> List<T> broadcast(Supplier<List<T>> query) {
+        if(!isEnabled()){
+            return call(0, query);
+        }
+        List<T> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            result.addAll(call(i, query));
+        }
+        return result;
+    }
+
+    /**
+     * 按用户所在分片分组
+     */
+    public Map<Integer, List<VoucherOrder>> groupByShard(Collection<VoucherOrder> orders) {
+        Map<Integer, List<VoucherOrder>> groups = new LinkedHashMap<>();
+        for (VoucherOrder order : orders) {
+            groups.computeIfAbsent(shardOf(order.getUserId()), k -> new ArrayList<>()).add(order);
+        }
+        return groups;
+    }
+
+    public Map<Integer, List<Long>> groupUsersByShard(Collection<Long> userIds) {
+        Map<Integer, List<Long>> groups = new LinkedHashMap<>();
+        for (Long userId : userIds) {
+            groups.computeIfAbsent(shardOf(userId), k -> new ArrayList<>()).add(userId);
+        }
+        return groups;
+    }
+
+    /**
+     * 按订单id中的分片号分组，只用于开启分表后生成的订单
+     */
+    public Map<Integer, List<Long>> groupOrderIdsByShard(Collection<Long> orderIds) {
+        Map<Integer, List<Long>> groups = new LinkedHashMap<>();
+        for (Long orderId : orderIds) {
+            groups.computeIfAbsent(shardOfOrder(orderId), k -> new ArrayList<>()).add(orderId);
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,199 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀订单的处理结果，由订单消费者在事务结束后写入redis，值为 "状态:用户id"，过期自动删除。
+ * 不存在记录表示订单还在处理中；长轮询的请求由一个后台线程每隔一段时间用一次MGET统一检查
+ */
+@Slf4j
+@Component
+public class OrderStatusCache {
+
+    public static final int CREATED = 1;
+    public static final int DUPLICATE = 2;
+    public static final int SOLD_OUT = 3;
+    public static final int CANCELED = 4;
+
+    private static final String[] STATUS_NAMES = {"PENDING", "CREATED", "DUPLICATE", "SOLD_OUT", "CANCELED"};
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.order.status.ttl-minutes:30}")
+    private Long ttlMinutes;
+
+    @Value("${hmdp.order.status.poll-interval-ms:100}")
+    private Long pollIntervalMs;
+
+    //订单id -> 等待结果的长轮询请求
+    private final Map<Long, List<Waiter>> waiters = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService pollExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    public void init() {
+        pollExecutor.scheduleWithFixedDelay(this::pollWaiters, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        pollExecutor.shutdownNow();
+    }
+
+    /**
+     * 记录订单处理结果。在事务中调用时等事务结束再写入，创建成功和取消只在提交后写入；
+     * 它们会覆盖已有记录，失败不覆盖，避免消息重投把成功改成重复下单
+     */
+    public void record(Collection<VoucherOrder> orders, int status) {
+        if(orders.isEmpty()){
+            return;
+        }
+        List<VoucherOrder> copy = new ArrayList<>(orders);
+        if(!TransactionSynchronizationManager.isSynchronizationActive()){
+            write(copy, status);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int txStatus) {
+                if(overwrites(status) && txStatus != STATUS_COMMITTED){
+                    return;
+                }
+                write(copy, status);
+            }
+        });
+    }
+
+    /**
+     * 查询订单状态，不是该用户的订单返回失败
+     */
+    public Result query(Long orderId, Long userId) {
+        return toResult(stringRedisTemplate.opsForValue().get(RedisConstants.ORDER_STATUS_KEY + orderId), userId);
+    }
+
+    /**
+     * 长轮询：已有结果立即返回，否则等到有结果或超时
+     */
+    public DeferredResult<Result> await(Long orderId, Long userId, long timeoutMs) {
+        DeferredResult<Result> deferred = new DeferredResult<>(timeoutMs, Result.ok(STATUS_NAMES[0]));
+        Result result = query(orderId, userId);
+        if(!STATUS_NAMES[0].equals(result.getData())){
+            deferred.setResult(result);
+            return deferred;
+        }
+        Waiter waiter = new Waiter(userId, deferred);
+        waiters.computeIfAbsent(orderId, k -> new CopyOnWriteArrayList<>()).add(waiter);
+        deferred.onCompletion(() -> {
+            List<Waiter> list = waiters.get(orderId);
+            if(list != null){
+                list.remove(waiter);
+                if(list.isEmpty()){
+                    waiters.remove(orderId, list);
+                }
+            }
+        });
+        return deferred;
+    }
+
+    private void write(List<VoucherOrder> orders, int status) {
+        try {
+            stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public <K, V> Object execute(RedisOperations<K, V> operations) {
+                    RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                    for (VoucherOrder order : orders) {
+                        String key = RedisConstants.ORDER_STATUS_KEY + order.getId();
+                        String value = status + ":" + order.getUserId();
+                        if(overwrites(status)){
+                            ops.opsForValue().set(key, value, ttlMinutes, TimeUnit.MINUTES);
+                        }else{
+                            ops.opsForValue().setIfAbsent(key, value, ttlMinutes, TimeUnit.MINUTES);
+                        }
+                    }
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            //状态只是给客户端查询用的，写失败不影响下单
+            log.warn("写入订单状态失败：{}", e.getMessage());
+        }
+    }
+
+    private static boolean overwrites(int status) {
+        return status == CREATED || status == CANCELED;
+    }
+
+    private void pollWaiters() {
+        if(waiters.isEmpty()){
+            return;
+        }
+        try {
+            List<Long> orderIds = new ArrayList<>(waiters.keySet());
+            List<String> keys = new ArrayList<>(orderIds.size());
+            for (Long orderId : orderIds) {
+                keys.add(RedisConstants.ORDER_STATUS_KEY + orderId);
+            }
+            List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+            if(values == null){
+                return;
+            }
+            for (int i = 0; i < orderIds.size(); i++) {
+                String value = values.get(i);
+                List<Waiter> list = value == null ? null : waiters.get(orderIds.get(i));
+                if(list == null){
+                    continue;
+                }
+                for (Waiter waiter : list) {
+                    waiter.deferred.setResult(toResult(value, waiter.userId));
+                }
+            }
+        } catch (Exception e) {
+            log.warn("轮询订单状态失败：{}", e.getMessage());
+        }
+    }
+
+    private static Result toResult(String value, Long userId) {
+        if(value == null){
+            return Result.ok(STATUS_NAMES[0]);
+        }
+        String[] parts = value.split(":");
+        if(!parts[1].equals(String.valueOf(userId))){
+            return Result.fail("订单不存在");
+        }
+        return Result.ok(STATUS_NAMES[Integer.parseInt(parts[0])]);
+    }
+
+    private static class Waiter {
+        private final Long userId;
+        private final DeferredResult<Result> deferred;
+
+        Waiter(Long userId, DeferredResult<Result> deferred) {
+            this.userId = userId;
+            this.deferred = deferred;
+        }
+    }
+}
@@ -10,14 +10,32 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    //博客列表中作者的昵称和头像
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    //本地缓存失效广播，消息内容为缓存key
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    //秒杀券hash中的字段：库存、活动起止时间（毫秒）、分段数
+    public static final String SECKILL_STOCK_FIELD = "stock";
+    public static final String SECKILL_BEGIN_FIELD = "begin";
+    public static final String SECKILL_END_FIELD = "end";
+    public static final String SECKILL_SEGMENTS_FIELD = "segments";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String ORDER_EXPIRE_KEY = "order:expire";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_LAST_KEY = "id:worker:last";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    //店铺id的布隆过滤器，各层和元数据都以它为前缀
+    public static final String SHOP_BLOOM_KEY = "bloom:shop";
     public static final String USER_SIGN_KEY = "sign:";
 
     public static final String FOLLOW_KEY = "follow:";
@@ -1,20 +1,46 @@
 package com.hmdp.utils;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "incr", matchIfMissing = true)
 public class RedisIdWorker {
 
     private static final long BEGIN_TIMESTAMP = 1735689600;
     private static final long COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    //带分片号的id，最低几位是分片号
+    public static final int SHARD_BITS = 4;
+    public static final int MAX_SHARDS = 1 << SHARD_BITS;
 
     private final StringRedisTemplate stringRedisTemplate;
 
+    //是否按号段租用序列号：每次INCRBY取一段，本地逐个发放
+    @Value("${hmdp.id.lease.enabled:false}")
+    private boolean leaseEnabled;
+    @Value("${hmdp.id.lease.min-size:100}")
+    private long minLeaseSize;
+    @Value("${hmdp.id.lease.max-size:100000}")
+    private long maxLeaseSize;
+    //期望多久租一次号段，号段用得更快就加倍，用得更慢就减半
+    @Value("${hmdp.id.lease.target-interval-ms:1000}")
+    private long targetIntervalMs;
+
+    //业务前缀 -> 号段发放器
+    private final Map<String, Leaser> leasers = new ConcurrentHashMap<>();
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
@@ -22,15 +48,155 @@ public class RedisIdWorker {
     public long nextId(String keyPrefix){
         //获取时间戳
         LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timeStamp = nowSecond - BEGIN_TIMESTAMP;
+        long timeStamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
         //获取序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count = nextCount(keyPrefix, now, 1);
         //拼接
         return timeStamp<<COUNT_BITS | count;
     }
 
+    /**
+     * 生成最低 SHARD_BITS 位为分片号的id，按id就能找到分片。
+     * 每个分片单独计数，每个分片每天最多 2^28 个id
+     */
+    public long nextId(String keyPrefix, int shard){
+        return nextIds(keyPrefix, shard, 1)[0];
+    }
+
+    /**
+     * 一次生成 n 个id，逐个INCR模式下只访问一次redis
+     */
+    public long[] nextIds(String keyPrefix, int n){
+        return generate(keyPrefix, n, -1);
+    }
+
+    /**
+     * 一次生成 n 个同一分片的id
+     */
+    public long[] nextIds(String keyPrefix, int shard, int n){
+        checkShard(shard);
+        return generate(keyPrefix + ":" + shard, n, shard);
+    }
+
+    /**
+     * id中的分片号，只对带分片号生成的id有意义
+     */
+    public static int shardOf(long id){
+        return (int) (id & (MAX_SHARDS - 1));
+    }
+
+    protected static void checkShard(int shard){
+        if(shard < 0 || shard >= MAX_SHARDS){
+            throw new IllegalArgumentException("分片号超出范围：" + shard);
+        }
+    }
+
+    //shard 小于0时生成不带分片号的id
+    private long[] generate(String counter, int n, int shard){
+        LocalDateTime now = LocalDateTime.now();
+        long timeStamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        long[] ids = new long[n];
+        if(leaseEnabled){
+            for (int i = 0; i < n; i++) {
+                ids[i] = compose(timeStamp, nextCount(counter, now, 1), shard);
+            }
+            return ids;
+        }
+        long end = nextCount(counter, now, n);
+        for (int i = 0; i < n; i++) {
+            ids[i] = compose(timeStamp, end - n + 1 + i, shard);
+        }
+        return ids;
+    }
+
+    private static long compose(long timeStamp, long count, int shard){
+        //序列号超出位数会写进时间戳，生成重复或乱序的id，宁可报错
+        if(shard < 0){
+            if(count >= 1L << COUNT_BITS){
+                throw new IllegalStateException("当天的id已用完，序列号：" + count);
+            }
+            return timeStamp<<COUNT_BITS | count;
+        }
+        if(count >= 1L << (COUNT_BITS - SHARD_BITS)){
+            throw new IllegalStateException("分片 " + shard + " 当天的id已用完，序列号：" + count);
+        }
+        return timeStamp<<COUNT_BITS | count<<SHARD_BITS | shard;
+    }
+
+    //号段模式下每次取一个，否则一次INCRBY取 n 个并返回最后一个
+    private long nextCount(String counter, LocalDateTime now, int n){
+        if(leaseEnabled){
+            return leasers.computeIfAbsent(counter, Leaser::new).next(now.toEpochSecond(ZoneOffset.UTC) / SECONDS_PER_DAY);
+        }
+        String date = now.format(DATE_FORMATTER);
+        return stringRedisTemplate.opsForValue().increment("icr:" + counter + ":" + date, n);
+    }
+
+    /**
+     * 按天租用的一段序列号 [next, end]
+     */
+    private static class Lease {
+        private final long day;
+        private final AtomicLong next;
+        private final long end;
+        private final long leasedAt;
+
+        Lease(long day, long start, long end) {
+            this.day = day;
+            this.next = new AtomicLong(start);
+            this.end = end;
+            this.leasedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 一个业务前缀的号段发放器。序列号仍来自当天的 icr 计数器，保证与逐个INCR的id不冲突；
+     * 跨天时丢弃旧号段，避免旧一天的序列号配上新一天的时间戳
+     */
+    private class Leaser {
+        private final String keyPrefix;
+        private volatile Lease lease = new Lease(-1, 1, 0);
+        private long size = minLeaseSize;
+
+        Leaser(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(long day) {
+            while (true) {
+                Lease current = lease;
+                if(current.day == day){
+                    long count = current.next.getAndIncrement();
+                    if(count <= current.end){
+                        return count;
+                    }
+                }
+                renew(current, day);
+            }
+        }
+
+        private synchronized void renew(Lease current, long day) {
+            if(lease != current){
+                //其他线程已经续租
+                return;
+            }
+            if(current.day == day){
+                adjustSize(System.currentTimeMillis() - current.leasedAt);
+            }
+            String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+            Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, size);
+            lease = new Lease(day, end - size + 1, end);
+        }
+
+        private void adjustSize(long elapsedMs) {
+            if(elapsedMs < targetIntervalMs){
+                size = Math.min(size * 2, maxLeaseSize);
+            }else if(elapsedMs > targetIntervalMs * 4){
+                size = Math.max(size / 2, minLeaseSize);
+            }
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2025, 1, 1, 0, 0, 0);
         long second = time.toEpochSecond(ZoneOffset.UTC);
@@ -0,0 +1,164 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 所有lua脚本的统一登记处。启动时用 SCRIPT LOAD 预加载，调用时走 EVALSHA；
+ * redis重启或 SCRIPT FLUSH 后收到 NOSCRIPT 时，Spring的脚本执行器会改用EVAL执行一次，脚本随之重新进入缓存。
+ * 通过 execute 调用的脚本按脚本统计调用次数、失败次数和耗时分布
+ */
+@Slf4j
+@Component
+public class RedisScripts {
+
+    public static final DefaultRedisScript<Long> SECKILL = load("seckill.lua");
+    public static final DefaultRedisScript<Long> SECKILL_SEGMENT = load("seckill_segment.lua");
+    public static final DefaultRedisScript<Long> SECKILL_CANCEL = load("seckill_cancel.lua");
+    public static final DefaultRedisScript<Long> SECKILL_BUNDLE = load("seckill_bundle.lua");
+    public static final DefaultRedisScript<Long> UNLOCK = load("unlock.lua");
+    public static final DefaultRedisScript<Long> ID_WORKER_RENEW = load("id_worker_renew.lua");
+    public static final DefaultRedisScript<Long> BLOG_LIKE = load("blog_like.lua");
+    public static final DefaultRedisScript<Long> FOLLOW = load("follow.lua");
+    public static final DefaultRedisScript<Long> BLOOM_GROW = load("bloom_grow.lua");
+    @SuppressWarnings("rawtypes")
+    public static final DefaultRedisScript<List> ORDER_EXPIRE_CLAIM = load("order_expire_claim.lua", List.class);
+
+    //耗时分布的桶上限，单位微秒，最后一个桶放超过上限的
+    private static final long[] BUCKETS_MICROS = {100, 250, 500, 1000, 2500, 5000, 10000, 50000};
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final Map<String, ScriptStats> stats = new LinkedHashMap<>();
+
+    public RedisScripts() {
+        register("seckill", SECKILL);
+        register("seckill_segment", SECKILL_SEGMENT);
+        register("seckill_cancel", SECKILL_CANCEL);
+        register("seckill_bundle", SECKILL_BUNDLE);
+        register("unlock", UNLOCK);
+        register("id_worker_renew", ID_WORKER_RENEW);
+        register("blog_like", BLOG_LIKE);
+        register("follow", FOLLOW);
+        register("bloom_grow", BLOOM_GROW);
+        register("order_expire_claim", ORDER_EXPIRE_CLAIM);
+    }
+
+    private static DefaultRedisScript<Long> load(String location) {
+        return load(location, Long.class);
+    }
+
+    private static <T> DefaultRedisScript<T> load(String location, Class<T> resultType) {
+        DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(location));
+        script.setResultType(resultType);
+        return script;
+    }
+
+    private void register(String name, RedisScript<?> script) {
+        stats.put(script.getSha1(), new ScriptStats(name, script));
+    }
+
+    @PostConstruct
+    public void preload() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                for (ScriptStats s : stats.values()) {
+                    connection.scriptingCommands()
+                            .scriptLoad(s.script.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+            log.info("预加载lua脚本 {} 个", stats.size());
+        } catch (Exception e) {
+            //预加载失败不影响使用，第一次调用时会通过EVAL加载
+            log.warn("预加载lua脚本失败：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 执行登记过的脚本并记录耗时
+     */
+    public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+        ScriptStats s = stats.get(script.getSha1());
+        long start = System.nanoTime();
+        try {
+            return stringRedisTemplate.execute(script, keys, args);
+        } catch (RuntimeException e) {
+            if(s != null){
+                s.errors.increment();
+            }
+            throw e;
+        } finally {
+            if(s != null){
+                s.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (ScriptStats s : stats.values()) {
+            result.put(s.name, s.snapshot());
+        }
+        return result;
+    }
+
+    private static class ScriptStats {
+        private final String name;
+        private final RedisScript<?> script;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[BUCKETS_MICROS.length + 1];
+
+        ScriptStats(String name, RedisScript<?> script) {
+            this.name = name;
+            this.script = script;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            calls.increment();
+            totalNanos.add(nanos);
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            int i = 0;
+            while (i < BUCKETS_MICROS.length && micros > BUCKETS_MICROS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+        }
+
+        Map<String, Object> snapshot() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            long n = calls.sum();
+            map.put("calls", n);
+            map.put("errors", errors.sum());
+            map.put("avgMicros", n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.sum() / n));
+            Map<String, Long> histogram = new LinkedHashMap<>();
+            for (int i = 0; i < BUCKETS_MICROS.length; i++) {
+                histogram.put("<=" + BUCKETS_MICROS[i] + "us", buckets[i].sum());
+            }
+            histogram.put(">" + BUCKETS_MICROS[BUCKETS_MICROS.length - 1] + "us", buckets[BUCKETS_MICROS.length].sum());
+            map.put("histogram", histogram);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBloomFilter;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 可扩容的布隆过滤器：由多层 Redisson 布隆过滤器串成，当前层插满后新建一层，
+ * 每层容量是上一层的2倍、误判率是上一层的一半，所以无论插入多少元素总误判率都不超过设定值。
+ * 布隆过滤器不能删除元素，删除只计数；删除过多或层数过多时用 rebuild 分页加载出新一代过滤器再整体切换。
+ * 元数据放在redis hash {name}:meta 中：gen 当前代，layers 层数，capacity 第0层容量，
+ * count:{gen}:{i} 各层插入数，deleted 删除数，next 正在重建的代。
+ * 还没有建过时 contains 一律返回true，不拦截任何请求。
+ * contains 使用本地缓存的元数据和各层过滤器对象，判为存在时每层只需一次redis往返；
+ * 判为不存在前重读一次元数据，其他节点刚扩容或切换了代时用最新的层再查，不会因为元数据落后而漏判
+ */
+@Slf4j
+public class ScalableBloomFilter<T> {
+
+    private static final int GROWTH = 2;
+    private static final double TIGHTENING = 0.5;
+    //本地缓存元数据的时长，单位毫秒
+    private static final long META_CACHE_MS = 1000;
+
+    private final RedissonClient redissonClient;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisScripts redisScripts;
+    private final String name;
+    private final String metaKey;
+    //新一代第0层的最小容量
+    private final long expectedInsertions;
+    //总误判率上限
+    private final double falsePositiveRate;
+
+    //本节点的判断统计，用来算实际误判率
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder positives = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    //本地缓存的元数据和读取时间，还没建过时缓存的是null
+    private volatile Meta cachedMeta;
+    private volatile long metaLoadedAt;
+    //代:层 -> 过滤器对象，复用后 Redisson 不用每次重新读取各层的配置
+    private final Map<String, RBloomFilter<T>> filters = new ConcurrentHashMap<>();
+
+    public ScalableBloomFilter(RedissonClient redissonClient, StringRedisTemplate stringRedisTemplate,
+                               RedisScripts redisScripts, String name, long expectedInsertions,
+                               double falsePositiveRate) {
+        this.redissonClient = redissonClient;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScripts = redisScripts;
+        this.name = name;
+        this.metaKey = name + ":meta";
+        this.expectedInsertions = expectedInsertions;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    public boolean isInitialized() {
+        return meta() != null;
+    }
+
+    public boolean contains(T element) {
+        checks.increment();
+        long now = System.currentTimeMillis();
+        boolean cached = now - metaLoadedAt < META_CACHE_MS;
+        Meta meta = cached ? cachedMeta : loadMeta();
+        for (int retry = 0; ; retry++) {
+            if(meta == null){
+                positives.increment();
+                return true;
+            }
+            try {
+                //新的层插入的是最近的数据，先查
+                for (int i = meta.layers - 1; i >= 0; i--) {
+                    if(layer(meta.gen, i).contains(element)){
+                        positives.increment();
+                        return true;
+                    }
+                }
+                if(!cached){
+                    return false;
+                }
+                //缓存的元数据可能落后，重读一次，层没有变化才判为不存在
+                Meta latest = loadMeta();
+                if(latest != null && latest.gen == meta.gen && latest.layers == meta.layers){
+                    return false;
+                }
+                meta = latest;
+                cached = false;
+            } catch (IllegalStateException e) {
+                //其他节点切换了代，旧的层已删除，丢掉本地缓存重读一次元数据
+                filters.clear();
+                if(retry > 0){
+                    positives.increment();
+                    return true;
+                }
+                meta = loadMeta();
+                cached = false;
+            }
+        }
+    }
+
+    /**
+     * 新增数据时调用；正在重建时同时写入新一代，切换后不会漏掉
+     */
+    public void add(T element) {
+        Meta meta = meta();
+        if(meta == null){
+            //还没建过，等重建时从数据库加载
+            return;
+        }
+        int top = meta.layers - 1;
+        if(layer(meta.gen, top).add(element)){
+            long count = stringRedisTemplate.opsForHash().increment(metaKey, countField(meta.gen, top), 1);
+            //只有一个调用方会看到插入数正好等于容量，由它新建下一层
+            if(count == capacity(meta.capacity, top)){
+                grow(meta, top + 1);
+                metaLoadedAt = 0;
+            }
+        }
+        if(meta.next != null && layer(meta.next, 0).add(element)){
+            stringRedisTemplate.opsForHash().increment(metaKey, countField(meta.next, 0), 1);
+        }
+    }
+
+    /**
+     * 删除数据时调用，只计数，删除占比过高时由定时任务重建
+     */
+    public void recordDelete() {
+        stringRedisTemplate.opsForHash().increment(metaKey, "deleted", 1);
+    }
+
+    /**
+     * 过滤器判断存在、数据库里却没有时调用
+     */
+    public void recordFalsePositive() {
+        falsePositives.increment();
+    }
+
+    /**
+     * 删除数占插入数的比例超过 maxDeletedRatio，或层数超过 maxLayers 时需要重建
+     */
+    public boolean needsRebuild(double maxDeletedRatio, int maxLayers) {
+        Meta meta = meta();
+        if(meta == null){
+            return true;
+        }
+        long inserted = sum(counts(meta).values());
+        return meta.layers > maxLayers || inserted > 0 && (double) meta.deleted / inserted > maxDeletedRatio;
+    }
+
+    /**
+     * 重建出新一代过滤器后整体切换，多个节点同时调用时只有一个执行
+     * @param size 当前数据量，新一代第0层按它的2倍和 expectedInsertions 中较大的分配
+     * @param loader 分页读出全部数据，逐个交给传入的 Consumer
+     * @return 加载的数据条数，其他节点正在重建时返回-1
+     */
+    public long rebuild(long size, Consumer<Consumer<T>> loader) {
+        RLock lock = redissonClient.getLock(name + ":rebuild");
+        if(!lock.tryLock()){
+            return -1;
+        }
+        try {
+            filters.clear();
+            Meta old = meta();
+            long gen = old == null ? 1 : old.gen + 1;
+            long capacity = Math.max(expectedInsertions, size * GROWTH);
+            RBloomFilter<T> layer = layer(gen, 0);
+            //上次重建中断留下的
+            layer.delete();
+            layer.tryInit(capacity, layerFalsePositiveRate(0));
+            //重建期间新增的数据同时写入新一代
+            stringRedisTemplate.opsForHash().put(metaKey, "next", String.valueOf(gen));
+            long[] loaded = new long[1];
+            loader.accept(element -> {
+                if(layer.add(element)){
+                    loaded[0]++;
+                }
+            });
+            stringRedisTemplate.opsForHash().increment(metaKey, countField(gen, 0), loaded[0]);
+            //切换
+            Map<String, String> current = new HashMap<>();
+            current.put("gen", String.valueOf(gen));
+            current.put("layers", "1");
+            current.put("capacity", String.valueOf(capacity));
+            current.put("deleted", "0");
+            stringRedisTemplate.opsForHash().putAll(metaKey, current);
+            stringRedisTemplate.opsForHash().delete(metaKey, "next");
+            if(old != null){
+                for (int i = 0; i < old.layers; i++) {
+                    layer(old.gen, i).delete();
+                    stringRedisTemplate.opsForHash().delete(metaKey, countField(old.gen, i));
+                }
+            }
+            filters.clear();
+            metaLoadedAt = 0;
+            log.info("重建布隆过滤器 {}，第{}代，加载 {} 条，容量 {}", name, gen, loaded[0], capacity);
+            return loaded[0];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 各层的容量、插入数和按插入数估算的误判率，以及本节点观测到的实际误判率
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        Meta meta = meta();
+        result.put("initialized", meta != null);
+        result.put("targetFalsePositiveRate", falsePositiveRate);
+        if(meta != null){
+            Map<Integer, Long> counts = counts(meta);
+            List<Map<String, Object>> layers = new ArrayList<>(meta.layers);
+            //各层独立，元素不在任何一层才判为不存在
+            double notFalsePositive = 1;
+            for (int i = 0; i < meta.layers; i++) {
+                RBloomFilter<T> layer = layer(meta.gen, i);
+                long count = counts.getOrDefault(i, 0L);
+                double fpr = estimateFalsePositiveRate(layer.getSize(), layer.getHashIterations(), count);
+                notFalsePositive *= 1 - fpr;
+                Map<String, Object> map = new LinkedHashMap<>();
+                map.put("capacity", capacity(meta.capacity, i));
+                map.put("count", count);
+                map.put("estimatedFalsePositiveRate", fpr);
+                layers.add(map);
+            }
+            result.put("generation", meta.gen);
+            result.put("rebuilding", meta.next != null);
+            result.put("inserted", sum(counts.values()));
+            result.put("deleted", meta.deleted);
+            result.put("estimatedFalsePositiveRate", 1 - notFalsePositive);
+            result.put("layers", layers);
+        }
+        long negatives = checks.sum() - positives.sum();
+        long fp = falsePositives.sum();
+        result.put("checks", checks.sum());
+        result.put("positives", positives.sum());
+        result.put("falsePositives", fp);
+        //误判率 = 误判数 / 实际不存在的数据的判断次数，布隆过滤器没有漏判，判为不存在的都是实际不存在
+        result.put("observedFalsePositiveRate", fp + negatives == 0 ? 0 : (double) fp / (fp + negatives));
+        return result;
+    }
+
+    //插入 n 个元素后的误判率 (1 - e^(-kn/m))^k
+    private static double estimateFalsePositiveRate(long bits, int hashes, long n) {
+        return Math.pow(1 - Math.exp(-(double) hashes * n / bits), hashes);
+    }
+
+    private void grow(Meta meta, int layer) {
+        layer(meta.gen, layer).tryInit(capacity(meta.capacity, layer), layerFalsePositiveRate(layer));
+        Long grown = redisScripts.execute(RedisScripts.BLOOM_GROW, Collections.singletonList(metaKey),
+                String.valueOf(meta.gen), String.valueOf(layer));
+        if(grown != null && grown == 1){
+            log.info("布隆过滤器 {} 扩容到 {} 层", name, layer + 1);
+        }
+    }
+
+    //读取元数据并更新本地缓存
+    private Meta loadMeta() {
+        Meta meta = meta();
+        Meta previous = cachedMeta;
+        if(meta != null && previous != null && meta.gen != previous.gen){
+            //切换了代，丢掉旧一代的过滤器对象
+            filters.keySet().removeIf(k -> !k.startsWith(meta.gen + ":")
+                    && (meta.next == null || !k.startsWith(meta.next + ":")));
+        }
+        cachedMeta = meta;
+        metaLoadedAt = System.currentTimeMillis();
+        return meta;
+    }
+
+    private Meta meta() {
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(metaKey, Arrays.asList("gen", "layers", "capacity", "deleted", "next"));
+        if(values.get(0) == null){
+            return null;
+        }
+        Meta meta = new Meta();
+        meta.gen = Long.parseLong((String) values.get(0));
+        meta.layers = Integer.parseInt((String) values.get(1));
+        meta.capacity = Long.parseLong((String) values.get(2));
+        meta.deleted = values.get(3) == null ? 0 : Long.parseLong((String) values.get(3));
+        meta.next = values.get(4) == null ? null : Long.valueOf((String) values.get(4));
+        return meta;
+    }
+
+    private Map<Integer, Long> counts(Meta meta) {
+        List<Object> fields = new ArrayList<>(meta.layers);
+        for (int i = 0; i < meta.layers; i++) {
+            fields.add(countField(meta.gen, i));
+        }
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(metaKey, fields);
+        Map<Integer, Long> counts = new HashMap<>();
+        for (int i = 0; i < values.size(); i++) {
+            counts.put(i, values.get(i) == null ? 0 : Long.parseLong((String) values.get(i)));
+        }
+        return counts;
+    }
+
+    private static long sum(Iterable<Long> values) {
+        long sum = 0;
+        for (Long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    private RBloomFilter<T> layer(long gen, int i) {
+        return filters.computeIfAbsent(gen + ":" + i, k -> redissonClient.getBloomFilter(name + ":" + k));
+    }
+
+    private static long capacity(long base, int layer) {
+        return base * (long) Math.pow(GROWTH, layer);
+    }
+
+    //第i层误判率 p*(1-r)*r^i，各层相加不超过 p
+    private double layerFalsePositiveRate(int layer) {
+        return falsePositiveRate * (1 - TIGHTENING) * Math.pow(TIGHTENING, layer);
+    }
+
+    private static String countField(long gen, int layer) {
+        return "count:" + gen + ":" + layer;
+    }
+
+    private static class Meta {
+        private long gen;
+        private int layers;
+        private long capacity;
+        private long deleted;
+        private Long next;
+    }
+}
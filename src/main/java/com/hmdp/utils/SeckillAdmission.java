@@ -0,0 +1,142 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀准入控制：每张券一个令牌桶，令牌数 = 剩余库存 * 超卖系数 / 节点数。
+ * 拿到令牌的请求才进入后面的lua判断，其余请求直接返回，不做任何redis操作；
+ * 令牌用完后每隔一段时间最多同步一次redis中的剩余库存，库存还有就补充令牌。
+ * 令牌桶放在有上限、闲置过期的本地缓存里，登录后才会走到这里，乱传的券id撑不大内存
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+
+    @Resource
+    private SegmentStock segmentStock;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Value("${hmdp.seckill.admission.enabled:false}")
+    private Boolean enabled;
+
+    //超卖系数，放进来的请求数是剩余库存的多少倍
+    @Value("${hmdp.seckill.admission.overbooking-factor:1.5}")
+    private Double overbookingFactor;
+
+    //部署的节点数，令牌按节点平分
+    @Value("${hmdp.seckill.admission.nodes:1}")
+    private Integer nodes;
+
+    @Value("${hmdp.seckill.admission.sync-interval-ms:1000}")
+    private Long syncIntervalMs;
+
+    //最多同时保留令牌桶的券数
+    @Value("${hmdp.seckill.admission.max-vouchers:1000}")
+    private Long maxVouchers;
+
+    //闲置多久的令牌桶被淘汰，单位分钟
+    private static final long BUCKET_IDLE_MINUTES = 10;
+
+    private Cache<Long, Bucket> buckets;
+
+    @PostConstruct
+    public void init() {
+        buckets = Caffeine.newBuilder()
+                .maximumSize(maxVouchers)
+                .expireAfterAccess(BUCKET_IDLE_MINUTES, TimeUnit.MINUTES)
+                .build();
+        //库存补回后重新计算令牌
+        soldOutRegistry.addResetListener(buckets::invalidate);
+    }
+
+    public enum Decision {
+        //放行
+        ADMITTED,
+        //库存已经没有了
+        SOLD_OUT,
+        //令牌用完但库存还有，稍后再试
+        BUSY
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Decision tryAcquire(Long voucherId) {
+        Bucket bucket = buckets.get(voucherId, id -> new Bucket());
+        if(bucket.tokens.decrementAndGet() >= 0){
+            bucket.admitted.increment();
+            return Decision.ADMITTED;
+        }
+        //令牌用完，由一个线程同步剩余库存
+        long last = bucket.lastSync.get();
+        long now = System.currentTimeMillis();
+        if(now - last >= syncIntervalMs && bucket.lastSync.compareAndSet(last, now)){
+            Long stock = segmentStock.remainingStock(voucherId);
+            bucket.stock = stock == null ? 0 : stock;
+            bucket.tokens.set(tokensOf(bucket.stock));
+            if(bucket.tokens.decrementAndGet() >= 0){
+                bucket.admitted.increment();
+                return Decision.ADMITTED;
+            }
+        }
+        bucket.rejected.increment();
+        return bucket.stock <= 0 ? Decision.SOLD_OUT : Decision.BUSY;
+    }
+
+    /**
+     * 归还一个已放行的令牌，用于组合秒杀中后面的券被拒绝时
+     */
+    public void release(Long voucherId) {
+        Bucket bucket = buckets.getIfPresent(voucherId);
+        if(bucket == null){
+            return;
+        }
+        bucket.tokens.incrementAndGet();
+        bucket.admitted.decrement();
+    }
+
+    public List<Map<String, Object>> stats() {
+        List<Map<String, Object>> list = new ArrayList<>();
+        buckets.asMap().forEach((voucherId, bucket) -> {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("voucherId", voucherId);
+            map.put("overbookingFactor", overbookingFactor);
+            map.put("lastSyncedStock", bucket.stock);
+            map.put("tokens", Math.max(0, bucket.tokens.get()));
+            map.put("admitted", bucket.admitted.sum());
+            map.put("rejected", bucket.rejected.sum());
+            list.add(map);
+        });
+        return list;
+    }
+
+    private long tokensOf(long stock) {
+        return stock <= 0 ? 0 : (long) Math.ceil(stock * overbookingFactor / nodes);
+    }
+
+    private static class Bucket {
+        //新桶的令牌为0，第一个请求会触发同步库存
+        private final AtomicLong tokens = new AtomicLong();
+        private final AtomicLong lastSync = new AtomicLong();
+        private volatile long stock = 1;
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+    }
+}
@@ -0,0 +1,46 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+
+/**
+ * 秒杀准入拦截器，排在登录拦截器之后，只有登录用户的请求才会创建令牌桶；被拒绝的请求不会进入秒杀lua
+ */
+public class SeckillAdmissionInterceptor implements HandlerInterceptor {
+
+    private final SeckillAdmission seckillAdmission;
+
+    public SeckillAdmissionInterceptor(SeckillAdmission seckillAdmission) {
+        this.seckillAdmission = seckillAdmission;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        @SuppressWarnings("unchecked")
+        Map<String, String> variables = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        if(variables == null || variables.get("id") == null){
+            return true;
+        }
+        Long voucherId;
+        try {
+            voucherId = Long.valueOf(variables.get("id"));
+        } catch (NumberFormatException e) {
+            return true;
+        }
+        SeckillAdmission.Decision decision = seckillAdmission.tryAcquire(voucherId);
+        if(decision == SeckillAdmission.Decision.ADMITTED){
+            return true;
+        }
+        //直接返回，不再进入后面的拦截器和秒杀逻辑
+        Result result = Result.fail(decision == SeckillAdmission.Decision.SOLD_OUT ? "优惠券库存不足！" : "抢购人数过多，请稍后再试！");
+        response.setContentType("application/json;charset=UTF-8");
+        response.getWriter().write(JSONUtil.toJsonStr(result));
+        return false;
+    }
+}
@@ -0,0 +1,156 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 分段库存：把一张热门秒杀券的库存拆到 N 个key上，分散到不同的slot。
+ * 每个用户按hash固定落在一个"主段"，一人一单的set也按主段拆分；
+ * 主段库存扣完后依次尝试其他段，所有段都扣不到才算库存不足，整个过程在 seckill_segment.lua 中一次完成。
+ */
+@Slf4j
+@Component
+public class SegmentStock {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisScripts redisScripts;
+
+    public SegmentStock(StringRedisTemplate stringRedisTemplate, RedisScripts redisScripts) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScripts = redisScripts;
+    }
+
+    //优惠券id -> 段数
+    private final Map<Long, Integer> segmentCounts = new ConcurrentHashMap<>();
+
+    /**
+     * 把库存平均拆到 segments 段中，余数分给前面的段，每段都带上活动起止时间。
+     * 写入命令通过传入的operations执行，可以放在pipeline中
+     */
+    public void init(RedisOperations<String, String> operations, Long voucherId, int stock, int segments,
+                     long beginMillis, long endMillis) {
+        int base = stock / segments;
+        int remainder = stock % segments;
+        for (int i = 0; i < segments; i++) {
+            Map<String, String> segment = new HashMap<>(4);
+            segment.put(RedisConstants.SECKILL_STOCK_FIELD, String.valueOf(i < remainder ? base + 1 : base));
+            segment.put(RedisConstants.SECKILL_BEGIN_FIELD, String.valueOf(beginMillis));
+            segment.put(RedisConstants.SECKILL_END_FIELD, String.valueOf(endMillis));
+            operations.opsForHash().putAll(stockKey(voucherId, i), segment);
+        }
+        Map<String, String> voucher = new HashMap<>(4);
+        voucher.put(RedisConstants.SECKILL_SEGMENTS_FIELD, String.valueOf(segments));
+        voucher.put(RedisConstants.SECKILL_BEGIN_FIELD, String.valueOf(beginMillis));
+        voucher.put(RedisConstants.SECKILL_END_FIELD, String.valueOf(endMillis));
+        operations.opsForHash().putAll(RedisConstants.SECKILL_STOCK_KEY + voucherId, voucher);
+        segmentCounts.put(voucherId, segments);
+    }
+
+    /**
+     * 本节点已知的段数，未知返回null
+     */
+    public Integer getSegments(Long voucherId) {
+        return segmentCounts.get(voucherId);
+    }
+
+    /**
+     * 从redis读取段数并缓存，没有分段返回null
+     */
+    public Integer loadSegments(Long voucherId) {
+        Object value = stringRedisTemplate.opsForHash()
+                .get(RedisConstants.SECKILL_STOCK_KEY + voucherId, RedisConstants.SECKILL_SEGMENTS_FIELD);
+        if(value == null){
+            return null;
+        }
+        Integer segments = Integer.valueOf(value.toString());
+        segmentCounts.put(voucherId, segments);
+        return segments;
+    }
+
+    /**
+     * 分段秒杀，返回值与seckill.lua一致：0成功，1库存不足，2重复下单，4未开始，5已结束
+     */
+    public long seckill(Long voucherId, Long userId, int segments) {
+        Long r = redisScripts.execute(RedisScripts.SECKILL_SEGMENT, Collections.emptyList(),
+                voucherId.toString(), userId.toString(), String.valueOf(segments),
+                String.valueOf(homeSegment(userId, segments)));
+        return r == null ? 1 : r;
+    }
+
+    /**
+     * redis中剩余库存，分段库存返回各段之和，券未加载返回null
+     */
+    public Long remainingStock(Long voucherId) {
+        List<Object> fields = stringRedisTemplate.opsForHash().multiGet(RedisConstants.SECKILL_STOCK_KEY + voucherId,
+                Arrays.asList(RedisConstants.SECKILL_STOCK_FIELD, RedisConstants.SECKILL_SEGMENTS_FIELD));
+        if(fields.get(1) != null){
+            return totalStock(voucherId, Integer.parseInt(fields.get(1).toString()));
+        }
+        return fields.get(0) == null ? null : Long.valueOf(fields.get(0).toString());
+    }
+
+    /**
+     * 各段库存之和
+     */
+    public long totalStock(Long voucherId, int segments) {
+        long total = 0;
+        for (int i = 0; i < segments; i++) {
+            Object stock = stringRedisTemplate.opsForHash().get(stockKey(voucherId, i), RedisConstants.SECKILL_STOCK_FIELD);
+            total += stock == null ? 0 : Long.parseLong(stock.toString());
+        }
+        return total;
+    }
+
+    /**
+     * 各段一人一单set的用户数之和
+     */
+    public long totalBuyers(Long voucherId, int segments) {
+        long total = 0;
+        for (int i = 0; i < segments; i++) {
+            Long size = stringRedisTemplate.opsForSet().size(orderKey(voucherId, i));
+            total += size == null ? 0 : size;
+        }
+        return total;
+    }
+
+    /**
+     * 调整库存：补库存加到第0段，减库存从前往后依次扣
+     */
+    public void adjustStock(Long voucherId, int segments, long delta) {
+        if(delta >= 0){
+            stringRedisTemplate.opsForHash().increment(stockKey(voucherId, 0), RedisConstants.SECKILL_STOCK_FIELD, delta);
+            return;
+        }
+        long remaining = -delta;
+        for (int i = 0; i < segments && remaining > 0; i++) {
+            String stockKey = stockKey(voucherId, i);
+            Object stock = stringRedisTemplate.opsForHash().get(stockKey, RedisConstants.SECKILL_STOCK_FIELD);
+            long take = Math.min(remaining, stock == null ? 0 : Long.parseLong(stock.toString()));
+            if(take > 0){
+                stringRedisTemplate.opsForHash().increment(stockKey, RedisConstants.SECKILL_STOCK_FIELD, -take);
+                remaining -= take;
+            }
+        }
+    }
+
+    public static int homeSegment(Long userId, int segments) {
+        return Math.floorMod(userId.hashCode(), segments);
+    }
+
+    public static String stockKey(Long voucherId, int segment) {
+        return RedisConstants.SECKILL_STOCK_KEY + voucherId + ":" + segment;
+    }
+
+    public static String orderKey(Long voucherId, int segment) {
+        return RedisConstants.SECKILL_ORDER_KEY + voucherId + ":" + segment;
+    }
+}
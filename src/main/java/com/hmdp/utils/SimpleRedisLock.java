@@ -1,10 +1,7 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
-import org.springframework.data.redis.core.script.RedisScript;
 
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
@@ -13,22 +10,18 @@ public class SimpleRedisLock implements ILock{
 
     private final String name;
     private final StringRedisTemplate stringRedisTemplate;
+    private final RedisScripts redisScripts;
 
-    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, RedisScripts redisScripts) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScripts = redisScripts;
     }
 
     public static final String KEY_PREFIX = "lock:";
 
     //用UUID来保证两个不同jvm是不同的锁（因为两个不同jvm可能会出现相同的线程id）
     public static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
-    public static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-    static{
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
     @Override
     public boolean tryLock(long timeSeconds) {
         String threadId = ID_PREFIX + Thread.currentThread().getId();
@@ -39,7 +32,7 @@ public class SimpleRedisLock implements ILock{
 
     @Override
     public void unlock() {
-        stringRedisTemplate.execute(UNLOCK_SCRIPT,
+        redisScripts.execute(RedisScripts.UNLOCK,
                 Collections.singletonList(KEY_PREFIX + name),
                 ID_PREFIX + Thread.currentThread().getId());
     }
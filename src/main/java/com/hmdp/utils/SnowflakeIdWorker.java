@@ -0,0 +1,178 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 时间戳 + worker id + 序列号的id生成器，只在启动和续租时访问redis。
+ * 高32位是秒级时间戳，低32位拆成10位worker id和22位序列号，id仍按时间有序。
+ * 带分片号生成时序列号按16对齐取号，最低4位填分片号，与 RedisIdWorker 的分片id布局相同；
+ * 不分表时22位都是序列号，每秒容量不受分片位影响
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "snowflake")
+public class SnowflakeIdWorker extends RedisIdWorker {
+
+    private static final long BEGIN_TIMESTAMP = 1735689600;
+    private static final long COUNT_BITS = 32;
+    private static final long SEQUENCE_BITS = 22;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long WORKER_SHIFT = SEQUENCE_BITS;
+    private static final int MAX_WORKERS = 1 << (COUNT_BITS - WORKER_SHIFT);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisScripts redisScripts;
+    private final String token = UUID.randomUUID().toString(true);
+
+    @Value("${hmdp.id.snowflake.lease-seconds:120}")
+    private long leaseSeconds;
+    @Value("${hmdp.id.snowflake.heartbeat-seconds:20}")
+    private long heartbeatSeconds;
+
+    private volatile long workerId = -1;
+    //租约的本地有效期，超过说明很久没续租成功，只告警，redis恢复后续租时才能确认是否被其他节点租走
+    private volatile long leaseValidUntil;
+    //续租时确认worker id已被其他节点占用，重新租到之前不能再发id
+    private volatile boolean lost;
+    //秒数 << 22 | 序列号，只增不减，时钟回拨时继续沿用上次的秒数
+    private final AtomicLong state = new AtomicLong();
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "id-worker-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate, RedisScripts redisScripts) {
+        super(stringRedisTemplate);
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScripts = redisScripts;
+    }
+
+    @PostConstruct
+    public void init() {
+        acquire();
+        heartbeat.scheduleWithFixedDelay(this::renew, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        heartbeat.shutdownNow();
+        String key = RedisConstants.ID_WORKER_KEY + workerId;
+        if(token.equals(stringRedisTemplate.opsForValue().get(key))){
+            stringRedisTemplate.delete(key);
+        }
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        return next(-1);
+    }
+
+    @Override
+    public long[] nextIds(String keyPrefix, int n) {
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = next(-1);
+        }
+        return ids;
+    }
+
+    @Override
+    public long[] nextIds(String keyPrefix, int shard, int n) {
+        checkShard(shard);
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = next(shard);
+        }
+        return ids;
+    }
+
+    //shard 小于0时生成不带分片号的id
+    private long next(int shard) {
+        //租约过期（比如redis不可用）时继续使用当前worker id，只有确认被其他节点占用才停止发号
+        if(lost){
+            throw new IllegalStateException("worker id 已被其他节点占用，正在重新申请，workerId=" + workerId);
+        }
+        long nowSecond = System.currentTimeMillis() / 1000 - BEGIN_TIMESTAMP;
+        long next;
+        while (true) {
+            long prev = state.get();
+            //同一秒内序列号加一，带分片号时跳到下一个16的倍数，序列号用完自动进位到下一秒
+            long step = shard < 0 ? prev + 1 : (prev | (MAX_SHARDS - 1)) + 1;
+            next = Math.max(step, nowSecond << SEQUENCE_BITS);
+            if(state.compareAndSet(prev, next)){
+                break;
+            }
+        }
+        long second = next >>> SEQUENCE_BITS;
+        if(second > nowSecond + 1){
+            log.debug("时钟回拨或序列号耗尽，借用未来时间 {} 秒", second - nowSecond);
+        }
+        long id = second << COUNT_BITS | workerId << WORKER_SHIFT | (next & SEQUENCE_MASK);
+        return shard < 0 ? id : id | shard;
+    }
+
+    private void acquire() {
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKERS);
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int id = (start + i) % MAX_WORKERS;
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(
+                    RedisConstants.ID_WORKER_KEY + id, token, leaseSeconds, TimeUnit.SECONDS);
+            if(Boolean.TRUE.equals(success)){
+                onLeased(id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的worker id");
+    }
+
+    private void onLeased(int id) {
+        //上一个使用该worker id的节点记录的秒数，新的id从它之后开始，避免对方时钟更快时产生重复
+        Object last = stringRedisTemplate.opsForHash().get(RedisConstants.ID_WORKER_LAST_KEY, String.valueOf(id));
+        long lastSecond = last == null ? 0 : Long.parseLong(last.toString());
+        state.accumulateAndGet((lastSecond + 1) << SEQUENCE_BITS, Math::max);
+        workerId = id;
+        lost = false;
+        leaseValidUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(leaseSeconds - heartbeatSeconds);
+        log.info("租到 worker id：{}", id);
+    }
+
+    private void renew() {
+        try {
+            long id = workerId;
+            Long result = redisScripts.execute(RedisScripts.ID_WORKER_RENEW,
+                    Arrays.asList(RedisConstants.ID_WORKER_KEY + id, RedisConstants.ID_WORKER_LAST_KEY),
+                    token, String.valueOf(leaseSeconds), String.valueOf(id),
+                    String.valueOf((state.get() >>> SEQUENCE_BITS) + 1));
+            if(result != null && result == 1){
+                leaseValidUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(leaseSeconds - heartbeatSeconds);
+                return;
+            }
+            //租约过期后被其他节点占用，先停止发号再换一个worker id
+            lost = true;
+            log.warn("worker id {} 已被其他节点租用，重新申请", id);
+            acquire();
+        } catch (Exception e) {
+            //redis不可用时继续用当前worker id，下次心跳再续租；期间如果被其他节点租走，恢复后第一次续租就会发现并停止发号
+            if(System.currentTimeMillis() > leaseValidUntil){
+                log.error("worker id {} 租约已过期仍在使用，续租失败：{}", workerId, e.getMessage());
+            }else{
+                log.warn("worker id 续租失败：{}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * 本地售罄标记：券卖完后本节点直接拒绝请求，不再执行lua脚本。
+ * 标记和清除都会通过redis发布订阅广播给其他节点；
+ * 标记带有效期，万一漏收了清除消息，过期后也会重新走一次redis判断。
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry implements MessageListener {
+
+    private static final String SOLD_OUT = "+";
+    private static final String RESET = "-";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.seckill.sold-out-ttl:60}")
+    private Long soldOutTtlSeconds;
+
+    //优惠券id -> 标记失效时间（毫秒）
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+    //清除标记时需要一起清理本地状态的组件
+    private final List<Consumer<Long>> resetListeners = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        redisMessageListenerContainer.addMessageListener(this,
+                new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 注册清除标记的回调，本节点和其他节点发起的清除都会回调
+     */
+    public void addResetListener(Consumer<Long> listener) {
+        resetListeners.add(listener);
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if(expireAt == null){
+            return false;
+        }
+        if(expireAt < System.currentTimeMillis()){
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        if(soldOut.put(voucherId, expireAt()) == null){
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    /**
+     * 库存补充或取消订单归还库存后清除售罄标记，并通知其他节点
+     */
+    public void reset(Long voucherId) {
+        clear(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, RESET + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            Long voucherId = Long.valueOf(body.substring(1));
+            if(body.startsWith(SOLD_OUT)){
+                soldOut.put(voucherId, expireAt());
+            }else if(body.startsWith(RESET)){
+                clear(voucherId);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("无法识别的售罄消息：{}", body);
+        }
+    }
+
+    private void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        for (Consumer<Long> listener : resetListeners) {
+            listener.accept(voucherId);
+        }
+    }
+
+    private long expireAt() {
+        return System.currentTimeMillis() + soldOutTtlSeconds * 1000;
+    }
+}
@@ -0,0 +1,11 @@
+-- 点赞/取消点赞切换，判断和修改在一个脚本内完成，并发重复点击不会重复计数
+-- KEYS[1] 博客点赞用户的zset
+-- ARGV[1] 用户id，ARGV[2] 点赞时间戳（zset按时间排序）
+if(redis.call('zscore', KEYS[1], ARGV[1]) == false) then
+    redis.call('zadd', KEYS[1], ARGV[2], ARGV[1])
+    -- 点赞返回1
+    return 1
+end
+redis.call('zrem', KEYS[1], ARGV[1])
+-- 取消点赞返回-1
+return -1
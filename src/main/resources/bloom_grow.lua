@@ -0,0 +1,9 @@
+-- 可扩容布隆过滤器新增一层：只有元数据仍是调用方看到的那一代、那个层数时才把层数加一，
+-- 防止重建切换到新一代后，旧一代的扩容把层数写到新一代上
+-- KEYS[1] 元数据hash
+-- ARGV[1] 代号，ARGV[2] 当前层数
+if(redis.call('hget', KEYS[1], 'gen') ~= ARGV[1] or redis.call('hget', KEYS[1], 'layers') ~= ARGV[2]) then
+    return 0
+end
+redis.call('hset', KEYS[1], 'layers', tonumber(ARGV[2]) + 1)
+return 1
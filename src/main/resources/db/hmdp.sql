@@ -1274,7 +1274,10 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) STORED COMMENT '未取消为1，已取消为NULL，不参与一人一单的唯一约束',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_voucher_user`(`voucher_id`, `user_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_status`(`voucher_id`, `status`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -0,0 +1,9 @@
+-- ----------------------------
+-- 已有库升级：已取消的订单不再占用一人一单的唯一索引，重新购买时插入新的订单行，原订单和订单id保持不变
+-- active 是生成列，未取消为1，已取消为NULL；唯一索引中含NULL的行互不冲突
+-- 开启分表时对每张 tb_voucher_order_N 同样执行
+-- ----------------------------
+ALTER TABLE `tb_voucher_order`
+  ADD COLUMN `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) STORED COMMENT '未取消为1，已取消为NULL，不参与一人一单的唯一约束',
+  DROP INDEX `uk_voucher_user`,
+  ADD UNIQUE INDEX `uk_voucher_user`(`voucher_id`, `user_id`, `active`) USING BTREE;
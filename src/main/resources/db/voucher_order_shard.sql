@@ -0,0 +1,17 @@
+-- ----------------------------
+-- 订单分表：tb_voucher_order 按 user_id 拆成 hmdp.order.shard.count 张表，下面以4张为例
+-- 表名后缀 = user_id % 分表数，表结构与原表相同，(voucher_id, user_id) 唯一索引在分表内仍然有效
+-- ----------------------------
+CREATE TABLE `tb_voucher_order_0` LIKE `tb_voucher_order`;
+CREATE TABLE `tb_voucher_order_1` LIKE `tb_voucher_order`;
+CREATE TABLE `tb_voucher_order_2` LIKE `tb_voucher_order`;
+CREATE TABLE `tb_voucher_order_3` LIKE `tb_voucher_order`;
+
+-- ----------------------------
+-- 已有订单迁移，需在停止下单、没有待取消的未支付订单时执行：
+-- 开启分表前生成的订单id不带分片号，超时取消按订单id找分表时找不到这些订单
+-- ----------------------------
+INSERT INTO `tb_voucher_order_0` SELECT * FROM `tb_voucher_order` WHERE `user_id` % 4 = 0;
+INSERT INTO `tb_voucher_order_1` SELECT * FROM `tb_voucher_order` WHERE `user_id` % 4 = 1;
+INSERT INTO `tb_voucher_order_2` SELECT * FROM `tb_voucher_order` WHERE `user_id` % 4 = 2;
+INSERT INTO `tb_voucher_order_3` SELECT * FROM `tb_voucher_order` WHERE `user_id` % 4 = 3;
@@ -0,0 +1,6 @@
+-- ----------------------------
+-- 已有库升级：按券统计未取消订单数（库存对账每轮执行）用 (voucher_id, status) 覆盖索引，不回表
+-- 开启分表时对每张 tb_voucher_order_N 同样执行
+-- ----------------------------
+ALTER TABLE `tb_voucher_order`
+  ADD INDEX `idx_voucher_status`(`voucher_id`, `status`) USING BTREE;
@@ -0,0 +1,12 @@
+-- ----------------------------
+-- 已有库升级：tb_voucher_order 增加 (voucher_id, user_id) 唯一索引，一人一单由索引保证
+-- ----------------------------
+
+-- 1. 清理历史重复订单，每个用户每张券只保留id最小的一条
+DELETE o1 FROM `tb_voucher_order` o1
+JOIN `tb_voucher_order` o2
+  ON o1.`user_id` = o2.`user_id` AND o1.`voucher_id` = o2.`voucher_id` AND o1.`id` > o2.`id`;
+
+-- 2. 增加唯一索引
+ALTER TABLE `tb_voucher_order`
+  ADD UNIQUE INDEX `uk_voucher_user`(`voucher_id`, `user_id`) USING BTREE;
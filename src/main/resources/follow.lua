@@ -0,0 +1,7 @@
+-- 关注/取消关注，返回关注关系是否真的发生了变化，没变化时调用方不再写数据库
+-- KEYS[1] 当前用户的关注集合
+-- ARGV[1] 被关注的用户id，ARGV[2] 1关注，0取消关注
+if(ARGV[2] == '1') then
+    return redis.call('sadd', KEYS[1], ARGV[1])
+end
+return redis.call('srem', KEYS[1], ARGV[1])
@@ -0,0 +1,12 @@
+-- 续租worker id，同时记录该worker最后使用的秒数，供下次租到同一个id的节点防时钟回拨
+-- KEYS[1] worker租约key，KEYS[2] 各worker最后使用秒数的hash
+-- ARGV[1] 节点标识，ARGV[2] 租约秒数，ARGV[3] worker id，ARGV[4] 最后使用的秒数
+local owner = redis.call('get', KEYS[1])
+-- 已被其他节点租走
+if owner and owner ~= ARGV[1] then
+    return 0
+end
+-- 过期但没被占用的直接重新租回
+redis.call('set', KEYS[1], ARGV[1], 'EX', ARGV[2])
+redis.call('hset', KEYS[2], ARGV[3], ARGV[4])
+return 1
@@ -0,0 +1,13 @@
+--认领到期的未支付订单：score不晚于当前时间的成员把score改成租约到期时间，返回认领到的成员。
+--成员要等取消提交后才ZREM；认领的节点宕机时，租约到期后由其他节点的扫描再次认领
+--KEYS[1] 到期订单ZSET，ARGV[1] 当前时间（毫秒），ARGV[2] 租约到期时间（毫秒），ARGV[3..] 成员
+local now = tonumber(ARGV[1])
+local claimed = {}
+for i = 3, #ARGV do
+    local score = redis.call('zscore', KEYS[1], ARGV[i])
+    if(score ~= false and tonumber(score) <= now) then
+        redis.call('zadd', KEYS[1], 'XX', ARGV[2], ARGV[i])
+        claimed[#claimed + 1] = ARGV[i]
+    end
+end
+return claimed
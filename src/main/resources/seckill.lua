@@ -4,13 +4,36 @@ local voucherId = ARGV[1]
 --1.2 用户id
 local userId = ARGV[2]
 
---库存key
+--秒杀券key，hash结构：stock库存，begin/end活动起止时间（毫秒），segments分段数
 local stockKey = 'seckill:stock:' .. voucherId
 --订单key
 local orderKey = 'seckill:order:' .. voucherId
 
+--用到了time命令，按效果复制（redis5以上默认如此）
+redis.replicate_commands()
+
+local voucher = redis.call('hmget',stockKey,'stock','begin','end','segments')
+--券信息未加载，按库存不足处理
+if(voucher[2] == false) then
+    return 1
+end
+--判断活动是否在有效期内
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(now < tonumber(voucher[2])) then
+    --未开始返回4
+    return 4
+end
+if(now > tonumber(voucher[3])) then
+    --已结束返回5
+    return 5
+end
+--库存被拆成了多段，返回3，由调用方走分段扣减
+if(voucher[4] ~= false) then
+    return 3
+end
 --判断库存是否充足
-if(tonumber(redis.call('get',stockKey)) <= 0) then
+if(voucher[1] == false or tonumber(voucher[1]) <= 0) then
     --库存不足返回1
     return 1
 end
@@ -21,6 +44,6 @@ if(redis.call('sismember',orderKey,userId) == 1) then
 end
 
 --库存减一并将该用户加入redis中，保证不重复下单
-redis.call('incrby',stockKey,-1)
+redis.call('hincrby',stockKey,'stock',-1)
 redis.call('sadd',orderKey,userId)
-return 0
\ No newline at end of file
+return 0
@@ -0,0 +1,39 @@
+--组合秒杀：一次抢多张券，全部满足才扣减，否则一张都不扣
+--参数列表：ARGV[1] 用户id，ARGV[2..] 优惠券id
+--返回0成功；失败返回 错误码 * 100 + 出错的券序号（从1开始），错误码同seckill.lua：
+--1库存不足或未加载，2重复下单，3分段库存（不支持组合秒杀），4未开始，5已结束
+local userId = ARGV[1]
+
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+--先全部检查
+for i = 2, #ARGV do
+    local stockKey = 'seckill:stock:' .. ARGV[i]
+    local voucher = redis.call('hmget', stockKey, 'stock', 'begin', 'end', 'segments')
+    local code = 0
+    if(voucher[2] == false) then
+        code = 1
+    elseif(now < tonumber(voucher[2])) then
+        code = 4
+    elseif(now > tonumber(voucher[3])) then
+        code = 5
+    elseif(voucher[4] ~= false) then
+        code = 3
+    elseif(voucher[1] == false or tonumber(voucher[1]) <= 0) then
+        code = 1
+    elseif(redis.call('sismember', 'seckill:order:' .. ARGV[i], userId) == 1) then
+        code = 2
+    end
+    if(code ~= 0) then
+        return code * 100 + (i - 1)
+    end
+end
+
+--再全部扣减
+for i = 2, #ARGV do
+    redis.call('hincrby', 'seckill:stock:' .. ARGV[i], 'stock', -1)
+    redis.call('sadd', 'seckill:order:' .. ARGV[i], userId)
+end
+return 0
@@ -0,0 +1,12 @@
+-- 取消订单后归还redis库存：用户还在购买集合里才归还，重复执行不会多还
+-- KEYS[1] 库存hash（分段时是用户所在段），KEYS[2] 购买用户集合
+-- ARGV[1] 用户id
+if(redis.call('exists', KEYS[1]) == 0) then
+    -- 券已下线，不再归还
+    return 0
+end
+if(redis.call('srem', KEYS[2], ARGV[1]) == 0) then
+    return 0
+end
+redis.call('hincrby', KEYS[1], 'stock', 1)
+return 1
@@ -0,0 +1,39 @@
+--分段秒杀：一人一单判断、按段扣减库存和登记购买用户在一个脚本里完成，中途失败不会留下半截状态
+--参数列表：ARGV[1] 优惠券id，ARGV[2] 用户id，ARGV[3] 段数，ARGV[4] 用户的主段
+--返回值与seckill.lua一致：0成功，1库存不足，2重复下单，4未开始，5已结束
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+local segments = tonumber(ARGV[3])
+local home = tonumber(ARGV[4])
+
+redis.replicate_commands()
+
+--活动起止时间放在券的主key上
+local voucher = redis.call('hmget', 'seckill:stock:' .. voucherId, 'begin', 'end')
+if(voucher[1] == false) then
+    return 1
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(now < tonumber(voucher[1])) then
+    return 4
+end
+if(now > tonumber(voucher[2])) then
+    return 5
+end
+--一人一单的set按主段拆分
+local orderKey = 'seckill:order:' .. voucherId .. ':' .. home
+if(redis.call('sismember', orderKey, userId) == 1) then
+    return 2
+end
+--从主段开始依次找有库存的段
+for i = 0, segments - 1 do
+    local stockKey = 'seckill:stock:' .. voucherId .. ':' .. ((home + i) % segments)
+    local stock = redis.call('hget', stockKey, 'stock')
+    if(stock ~= false and tonumber(stock) > 0) then
+        redis.call('hincrby', stockKey, 'stock', -1)
+        redis.call('sadd', orderKey, userId)
+        return 0
+    end
+end
+return 1
@@ -1,23 +1,40 @@
 package com.hmdp;
 
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.OrderShards;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.SnowflakeIdWorker;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 @SpringBootTest
 class HmDianPingApplicationTests {
 
@@ -27,6 +44,9 @@ class HmDianPingApplicationTests {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisScripts redisScripts;
+
     @Test
     public void test01() throws InterruptedException {
         shopService.saveShop2Redis(1L,10L);
@@ -56,6 +76,119 @@ class HmDianPingApplicationTests {
         System.out.println("总时间为： "+(end-start));
     }
 
+    //号段模式下的id生成吞吐，需要开启 hmdp.id.lease.enabled，同时检查单线程内id递增且全局不重复
+    @Test
+    public void testIdWorkerLease() throws InterruptedException {
+        int threads = 300;
+        int perThread = 10000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet(threads * perThread);
+        CountDownLatch latch = new CountDownLatch(threads);
+        Runnable task = () -> {
+            long last = 0;
+            for (int i = 0; i < perThread; i++) {
+                long id = redisIdWorker.nextId("order");
+                if(id <= last){
+                    System.out.println("id不递增：" + last + " -> " + id);
+                }
+                last = id;
+                ids.add(id);
+            }
+            latch.countDown();
+        };
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        long time = System.currentTimeMillis() - start;
+        System.out.println("生成 " + threads * perThread + " 个id耗时：" + time + " ms，重复：" + (threads * perThread - ids.size()));
+    }
+
+    //对比逐个INCR和snowflake两种id生成方式的吞吐，先预热再计时
+    @Test
+    public void testIdWorkerCompare() throws InterruptedException {
+        RedisIdWorker incrWorker = new RedisIdWorker(stringRedisTemplate);
+        SnowflakeIdWorker snowflakeWorker = new SnowflakeIdWorker(stringRedisTemplate, redisScripts);
+        ReflectionTestUtils.setField(snowflakeWorker, "leaseSeconds", 120L);
+        ReflectionTestUtils.setField(snowflakeWorker, "heartbeatSeconds", 20L);
+        snowflakeWorker.init();
+        try {
+            for (RedisIdWorker worker : Arrays.asList(incrWorker, snowflakeWorker)) {
+                benchmarkIdWorker(worker, 10, 1000);
+                long time = benchmarkIdWorker(worker, 100, 1000);
+                System.out.println(worker.getClass().getSimpleName() + " 生成 100000 个id耗时：" + time + " ms，TPS：" + 100000L * 1000 / Math.max(time, 1));
+            }
+        } finally {
+            snowflakeWorker.destroy();
+        }
+    }
+
+    private long benchmarkIdWorker(RedisIdWorker worker, int threads, int perThread) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(threads);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            es.submit(() -> {
+                for (int j = 0; j < perThread; j++) {
+                    worker.nextId("order");
+                }
+                latch.countDown();
+            });
+        }
+        latch.await();
+        return System.currentTimeMillis() - start;
+    }
+
+    //对比json和二进制两种缓存编码：编码后大小、编码和解码耗时，先预热再计时
+    @Test
+    public void testCacheCodecCompare() {
+        Shop shop = new Shop()
+                .setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg,https://qcloud.dpfile.com/pc/IOf6VX3qaBgFXFVgp75w-KKJmWZjFc8GXDU8g9bQC6YGCpAmG00QbfT4vCCBj7njuzFvxlbkWx5uwqY2qcjixFEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vmIU_8ZGOT1OjpJmLxG6urQ.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078)
+                .setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        long expireAt = System.currentTimeMillis() + 60_000;
+        for (CacheCodec codec : Arrays.asList(new JsonCacheCodec(), new BinaryCacheCodec())) {
+            byte[] bytes = codec.encode(shop, expireAt);
+            if(!shop.equals(codec.decode(bytes, Shop.class)) || codec.expireAt(bytes) != expireAt){
+                throw new IllegalStateException(codec.getClass().getSimpleName() + " 编解码结果不一致");
+            }
+            benchmarkCodec(codec, shop, expireAt, 20000);
+            long[] nanos = benchmarkCodec(codec, shop, expireAt, 200000);
+            System.out.println(codec.getClass().getSimpleName() + " 大小：" + bytes.length + " 字节，编码："
+                    + nanos[0] / 200000 + " ns/次，解码：" + nanos[1] / 200000 + " ns/次，读过期时间："
+                    + nanos[2] / 200000 + " ns/次");
+        }
+    }
+
+    //返回编码、解码、读取过期时间的总耗时（纳秒）
+    private long[] benchmarkCodec(CacheCodec codec, Shop shop, long expireAt, int n) {
+        byte[] bytes = codec.encode(shop, expireAt);
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            sink += codec.encode(shop, expireAt).length;
+        }
+        long encode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            sink += codec.decode(bytes, Shop.class).getSold();
+        }
+        long decode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            sink += codec.expireAt(bytes);
+        }
+        long header = System.nanoTime() - start;
+        if(sink == 42){
+            System.out.println(sink);
+        }
+        return new long[]{encode, decode, header};
+    }
+
     @Test
     public void loadShopData(){
         //查询店铺信息
@@ -77,4 +210,100 @@ class HmDianPingApplicationTests {
             stringRedisTemplate.opsForGeo().add(key,locations);
         }
     }
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private OrderShards orderShards;
+
+    //对比逐条下单和批量下单的吞吐，需要先准备一张库存足够的秒杀券；两种方式入库的订单数都要和扣掉的库存一致
+    @Test
+    public void testOrderBatch(){
+        long voucherId = 10L;
+        int total = 2000;
+        int batchSize = 100;
+        List<VoucherOrder> orders = new ArrayList<>(total * 2);
+        for (int i = 0; i < total * 2; i++) {
+            VoucherOrder order = new VoucherOrder();
+            order.setUserId(System.nanoTime());
+            order.setId(orderShards.nextOrderId(order.getUserId()));
+            order.setVoucherId(voucherId);
+            orders.add(order);
+        }
+        int stockBefore = seckillVoucherService.getById(voucherId).getStock();
+        //逐条
+        long start = System.currentTimeMillis();
+        for (VoucherOrder order : orders.subList(0, total)) {
+            voucherOrderService.createVoucherOrder(order);
+        }
+        long single = System.currentTimeMillis() - start;
+        int stockMiddle = seckillVoucherService.getById(voucherId).getStock();
+        assertEquals(Math.min(stockBefore, total), stockBefore - stockMiddle, "逐条下单扣减的库存不对");
+        assertEquals(stockBefore - stockMiddle, countPersisted(orders.subList(0, total)), "逐条下单入库的订单数与扣减的库存不一致");
+        //批量
+        start = System.currentTimeMillis();
+        for (int i = total; i < total * 2; i += batchSize) {
+            voucherOrderService.createVoucherOrders(orders.subList(i, Math.min(i + batchSize, total * 2)));
+        }
+        long batch = System.currentTimeMillis() - start;
+        int stockAfter = seckillVoucherService.getById(voucherId).getStock();
+        assertEquals(Math.min(stockMiddle, total), stockMiddle - stockAfter, "批量下单扣减的库存不对");
+        assertEquals(stockMiddle - stockAfter, countPersisted(orders.subList(total, total * 2)), "批量下单入库的订单数与扣减的库存不一致");
+        //重投同一批不能重复入库，也不能再扣库存
+        for (int i = total; i < total * 2; i += batchSize) {
+            voucherOrderService.createVoucherOrders(orders.subList(i, Math.min(i + batchSize, total * 2)));
+        }
+        assertEquals(stockAfter, (int) seckillVoucherService.getById(voucherId).getStock(), "重投的订单又扣了库存");
+        assertEquals(stockMiddle - stockAfter, countPersisted(orders.subList(total, total * 2)), "重投的订单重复入库");
+        System.out.println("逐条下单 " + total + " 单耗时：" + single + " ms，TPS：" + total * 1000L / Math.max(single, 1));
+        System.out.println("批量下单 " + total + " 单耗时：" + batch + " ms，TPS：" + total * 1000L / Math.max(batch, 1));
+    }
+
+    //按订单id统计库里的订单数
+    private int countPersisted(List<VoucherOrder> orders) {
+        List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        return orderShards.broadcast(() -> voucherOrderService.query().in("id", ids).list()).size();
+    }
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    //唯一索引下 insert ignore 在100万、1000万、5000万订单时的插入耗时，会写入大量数据，只能在测试库执行
+    @Test
+    public void testOrderInsertLatency(){
+        long fillVoucherId = 999999L;
+        long probeVoucherId = 999998L;
+        long[] levels = {1_000_000L, 10_000_000L, 50_000_000L};
+        int fillBatch = 5000;
+        int probes = 1000;
+        for (long level : levels) {
+            //先把表填充到目标数据量
+            long count = voucherOrderMapper.selectCount(null);
+            long seq = count;
+            while (count < level) {
+                List<VoucherOrder> fill = new ArrayList<>(fillBatch);
+                for (int i = 0; i < fillBatch; i++, seq++) {
+                    VoucherOrder order = new VoucherOrder();
+                    order.setId(1L << 62 | seq);
+                    order.setUserId(seq);
+                    order.setVoucherId(fillVoucherId);
+                    fill.add(order);
+                }
+                count += voucherOrderMapper.insertIgnoreBatch(fill);
+            }
+            //再测单条插入
+            long start = System.nanoTime();
+            for (int i = 0; i < probes; i++) {
+                VoucherOrder order = new VoucherOrder();
+                order.setId(1L << 61 | level + i);
+                order.setUserId(level + i);
+                order.setVoucherId(probeVoucherId);
+                voucherOrderMapper.insertIgnore(order);
+            }
+            long cost = System.nanoTime() - start;
+            System.out.println("订单量 " + level + "，单条插入平均耗时：" + cost / probes / 1000 + " us");
+        }
+    }
 }
@@ -0,0 +1,241 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.OrderShards;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 秒杀下单链路压测：H2内存库 + 本地redis-server + 进程内订单队列，不依赖外部环境。
+ * 默认不执行，用 mvn test -Dtest=SeckillLoadTest -Dloadtest=true 运行，
+ * 找不到 redis-server 时跳过。参数：loadtest.users、loadtest.stock、loadtest.threads、loadtest.attempts（每个用户的请求次数）、loadtest.redis-server
+ */
+@SpringBootTest
+@ActiveProfiles("loadtest")
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+public class SeckillLoadTest {
+
+    private static Process redisServer;
+
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private OrderShards orderShards;
+
+    private static int redisPort;
+
+    //在随机端口启动一个不落盘的redis-server，找不到就跳过压测，不去碰本机已有的redis
+    @BeforeAll
+    static void startRedis() throws IOException, InterruptedException {
+        String bin = System.getProperty("loadtest.redis-server", "redis-server");
+        try (ServerSocket socket = new ServerSocket(0)) {
+            redisPort = socket.getLocalPort();
+        }
+        try {
+            redisServer = new ProcessBuilder(bin, "--port", String.valueOf(redisPort), "--save", "", "--appendonly", "no")
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "loadtest-redis.log"))
+                    .start();
+        } catch (IOException e) {
+            redisServer = null;
+        }
+        assumeTrue(redisServer != null, "未找到 " + bin + "，跳过秒杀压测");
+        for (int i = 0; i < 50; i++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", redisPort), 100);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("redis-server 启动超时");
+    }
+
+    //容器在 @BeforeAll 之后才创建，这时redis已经启动
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.redis.host", () -> "127.0.0.1");
+        registry.add("spring.redis.port", () -> redisPort);
+    }
+
+    @AfterAll
+    static void stopRedis() {
+        if(redisServer != null){
+            redisServer.destroy();
+        }
+    }
+
+    @Test
+    public void seckillLoad() throws InterruptedException {
+        int users = Integer.getInteger("loadtest.users", 5000);
+        int stock = Integer.getInteger("loadtest.stock", 500);
+        int threads = Integer.getInteger("loadtest.threads", 200);
+        int attempts = Integer.getInteger("loadtest.attempts", 2);
+
+        Long voucherId = createVoucher(stock);
+        long commandsBefore = redisCommandCount();
+
+        //每个用户请求 attempts 次，同一用户的重复请求交错在整个压测过程中
+        int requests = users * attempts;
+        long[] latencies = new long[requests];
+        AtomicInteger accepted = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(requests);
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            int index = i;
+            long userId = 1_000_000L + i % users;
+            es.submit(() -> {
+                UserDTO user = new UserDTO();
+                user.setId(userId);
+                UserHolder.saveUser(user);
+                long t = System.nanoTime();
+                try {
+                    Result result = voucherOrderService.secKillVouvher(voucherId);
+                    if(result.getSuccess()){
+                        accepted.incrementAndGet();
+                    }
+                } finally {
+                    latencies[index] = System.nanoTime() - t;
+                    UserHolder.removeUser();
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - start;
+        es.shutdown();
+
+        //等订单全部入库
+        long orders = 0;
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (System.currentTimeMillis() < deadline) {
+            orders = orderShards.broadcast(() -> voucherOrderService.query().select("id")
+                    .eq("voucher_id", voucherId).list()).size();
+            if(orders >= accepted.get()){
+                break;
+            }
+            Thread.sleep(100);
+        }
+        long commands = redisCommandCount() - commandsBefore;
+
+        Arrays.sort(latencies);
+        System.out.println("========== 秒杀压测 ==========");
+        System.out.println("用户数：" + users + "，每人请求：" + attempts + "，并发线程：" + threads + "，库存：" + stock);
+        System.out.println("请求数：" + requests + "，耗时：" + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms，TPS："
+                + requests * 1_000_000_000L / Math.max(elapsed, 1));
+        System.out.println("延迟 p50：" + micros(latencies, 0.50) + " us，p99：" + micros(latencies, 0.99)
+                + " us，max：" + TimeUnit.NANOSECONDS.toMicros(latencies[requests - 1]) + " us");
+        System.out.println("抢到：" + accepted.get() + "，入库：" + orders
+                + "，redis命令数/订单：" + (accepted.get() == 0 ? "-" : String.format("%.1f", (double) commands / accepted.get())));
+
+        //不变式：不超卖、不少卖、一人一单、两边库存守恒、数据库订单与redis购买用户一致
+        assertTrue(accepted.get() <= stock, "redis超卖");
+        assertEquals(Math.min(stock, users), accepted.get(), "库存或用户没有用完就停止放行");
+        assertEquals(accepted.get(), orders, "抢到的订单没有全部入库");
+        Set<Long> buyers = new HashSet<>();
+        for (VoucherOrder order : orderShards.broadcast(() -> voucherOrderService.query().select("user_id")
+                .eq("voucher_id", voucherId).list())) {
+            assertTrue(buyers.add(order.getUserId()), "用户重复下单：" + order.getUserId());
+        }
+        Set<Long> redisBuyerIds = new HashSet<>();
+        Set<String> members = stringRedisTemplate.opsForSet().members(RedisConstants.SECKILL_ORDER_KEY + voucherId);
+        if(members != null){
+            for (String member : members) {
+                redisBuyerIds.add(Long.valueOf(member));
+            }
+        }
+        assertEquals(redisBuyerIds, buyers, "数据库下单用户与redis购买用户不一致");
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        assertEquals(stock, seckillVoucher.getStock() + orders, "数据库库存不守恒");
+        Object redisStock = stringRedisTemplate.opsForHash().get(RedisConstants.SECKILL_STOCK_KEY + voucherId, RedisConstants.SECKILL_STOCK_FIELD);
+        assertEquals(stock, Long.parseLong(String.valueOf(redisStock)) + accepted.get(), "redis库存不守恒");
+        Long redisBuyers = stringRedisTemplate.opsForSet().size(RedisConstants.SECKILL_ORDER_KEY + voucherId);
+        assertEquals(accepted.get(), redisBuyers == null ? 0 : redisBuyers.intValue(), "redis购买用户数与订单数不一致");
+    }
+
+    private Long createVoucher(int stock) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    //INFO commandstats 中所有命令的调用次数之和，包含后台任务的命令
+    private long redisCommandCount() {
+        Properties info = stringRedisTemplate.execute((RedisCallback<Properties>) connection ->
+                connection.serverCommands().info("commandstats"));
+        long total = 0;
+        if(info == null){
+            return total;
+        }
+        for (String name : info.stringPropertyNames()) {
+            if(!name.startsWith("cmdstat_")){
+                continue;
+            }
+            //calls=10,usec=100,usec_per_call=10.00
+            String value = info.getProperty(name);
+            int begin = value.indexOf("calls=") + "calls=".length();
+            int end = value.indexOf(',', begin);
+            total += Long.parseLong(value.substring(begin, end < 0 ? value.length() : end));
+        }
+        return total;
+    }
+
+    private static long micros(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(index, 0)]);
+    }
+}